@@ -7,31 +7,76 @@ import net.nextencia.rrdiagram.grammar.model.*;
 import net.nextencia.rrdiagram.grammar.rrdiagram.RRDiagram;
 import net.nextencia.rrdiagram.grammar.rrdiagram.RRDiagramToSVG;
 
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.io.File;
-import java.io.FileReader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 class BNFProcessor {
   static Logger logger = Logger.getLogger(BNFProcessor.class.getName());
 
-  static HashMap<String, BNFProcessor> processors = new HashMap<String, BNFProcessor>();
+  // api-version -> processor, completed once the grammar file is loaded
+  static ConcurrentHashMap<String, CompletableFuture<BNFProcessor>> processors =
+      new ConcurrentHashMap<String, CompletableFuture<BNFProcessor>>();
 
+  // incremented for every loaded processor, so that caches can tell a reloaded grammar apart
+  static AtomicLong generations = new AtomicLong();
+
+  // folder holding the content/ folder of the docs, where grammar files are looked up
+  static volatile File docsRoot = new File(".");
+
+  // Identifies the code rendering the responses, so that tags change with it.
+  // Unknown, tags change on every start rather than outlive the content.
+  static final String rendererHash = Utils.getBuildHash() != null
+      ? Utils.getBuildHash() : Long.toString(System.currentTimeMillis());
+
+  // called with every processor added to the registry, see GrammarReloader
+  static volatile Consumer<BNFProcessor> loadListener;
+
+  String bnffile;
   String api;
   String version;
   Grammar grammar;
+  // source of the grammar, kept to parse the next version incrementally
+  String text;
+  // digests of the grammar and of its rules, see getETag()
+  String grammarHash;
+  Map<String, String> ruleHashes;
+  final long generation = generations.incrementAndGet();
 
-  public static synchronized void setDefault(BNFProcessor processor) {
+  // rendered on first use, see getReferenceResponse()
+  private volatile Response referenceFile;
+
+  public static void setDefault(BNFProcessor processor) {
     String key = String.format("%s-%s", "ysql", "preview");
-    processors.put(key, processor);
+    processors.put(key, CompletableFuture.completedFuture(processor));
+    notifyLoaded(processor);
+  }
+
+  private static void notifyLoaded(BNFProcessor processor) {
+    Consumer<BNFProcessor> listener = loadListener;
+    if (listener != null) {
+      listener.accept(processor);
+    }
   }
 
   // get the correct processor
-  public static synchronized BNFProcessor get(String api, String version) {
+  public static BNFProcessor get(String api, String version) {
     if (api == null) {
       api = "ysql";
     }
@@ -41,96 +86,306 @@ class BNFProcessor {
     }
 
     String key = String.format("%s-%s", api, version);
-    if (processors.containsKey(key)) {
-      return processors.get(key);
+    CompletableFuture<BNFProcessor> loader = processors.get(key);
+    if (loader == null) {
+      // The first request for a version loads its file, while the other requests
+      // for the same version wait for it. Other versions are not blocked.
+      CompletableFuture<BNFProcessor> newLoader = new CompletableFuture<BNFProcessor>();
+      loader = processors.putIfAbsent(key, newLoader);
+      if (loader == null) {
+        loader = newLoader;
+        try {
+          BNFProcessor processor = load(api, version);
+          if (processor == null) {
+            // don't remember the failure, the file may be added later on
+            processors.remove(key, newLoader);
+          }
+          newLoader.complete(processor);
+          if (processor != null) {
+            notifyLoaded(processor);
+          }
+        } catch (Throwable t) {
+          // Errors too (e.g. a stack overflow on a deeply nested grammar): the
+          // waiting requests must wake up and the version must be loadable again.
+          processors.remove(key, newLoader);
+          newLoader.completeExceptionally(t);
+        }
+      }
     }
 
-    // else load the file
-    String bnffile = String.format("content/%s/api/%s/syntax_resources/%s_grammar.ebnf", version, api, api);
-    File f = new File(bnffile);
+    try {
+      return loader.join();
+    } catch (CompletionException e) {
+      logger.severe("Unable to load grammar for " + key + ": " + e.getCause());
+      return null;
+    }
+  }
+
+  private static File getGrammarFile(String api, String version) {
+    return new File(docsRoot, String.format("content/%s/api/%s/syntax_resources/%s_grammar.ebnf", version, api, api));
+  }
+
+  private static BNFProcessor load(String api, String version) {
+    File f = getGrammarFile(api, version);
+    String bnffile = f.getPath();
     if (f.exists() && !f.isDirectory()) {
-      processors.put(key, new BNFProcessor(bnffile, api, version));
-      return processors.get(key);
+      try {
+        return new BNFProcessor(bnffile, api, version);
+      } catch (java.io.IOException ioe) {
+        logger.severe("Unable to read from file: " + bnffile + ": " + ioe);
+        return null;
+      } catch (IllegalArgumentException iae) {
+        // the errors were logged
+        logger.severe(iae.getMessage());
+        return null;
+      }
     } else {
       logger.severe("Unable to locate grammar file: " + bnffile);
       return null;
     }
   }
 
-  public BNFProcessor(String bnffile, String api, String version) {
-    try {
-      FileReader in = new java.io.FileReader(bnffile);
+  /**
+   * Loads all the grammar files of the docs root in parallel, along with their
+   * reference document if warmup is set (which also warms up the JIT and the
+   * fonts).
+   * @return a future completed with the loaded processors.
+   */
+  static CompletableFuture<List<BNFProcessor>> preload(final boolean warmup, Executor executor) {
+    final List<CompletableFuture<BNFProcessor>> loaders = new ArrayList<CompletableFuture<BNFProcessor>>();
+    File[] versionFolders = new File(docsRoot, "content").listFiles();
+    if (versionFolders == null) {
+      logger.warning("No content folder to preload in " + docsRoot);
+    } else {
+      for (File versionFolder : versionFolders) {
+        File[] apiFolders = new File(versionFolder, "api").listFiles();
+        if (apiFolders == null) {
+          continue;
+        }
+        for (File apiFolder : apiFolders) {
+          final String api = apiFolder.getName();
+          final String version = versionFolder.getName();
+          if (!getGrammarFile(api, version).isFile()) {
+            continue;
+          }
+          loaders.add(CompletableFuture.supplyAsync(new Supplier<BNFProcessor>() {
+            @Override
+            public BNFProcessor get() {
+              BNFProcessor processor = BNFProcessor.get(api, version);
+              if (processor != null && warmup) {
+                try {
+                  processor.getReferenceResponse();
+                } catch (RuntimeException e) {
+                  // not kept, requests render it again
+                  logger.log(Level.SEVERE, "Unable to warm up " + processor.bnffile, e);
+                }
+              }
+              return processor;
+            }
+          }, executor));
+        }
+      }
+    }
+
+    return CompletableFuture.allOf(loaders.toArray(new CompletableFuture<?>[0])).thenApply(new Function<Void, List<BNFProcessor>>() {
+      @Override
+      public List<BNFProcessor> apply(Void unused) {
+        List<BNFProcessor> loaded = new ArrayList<BNFProcessor>();
+        for (CompletableFuture<BNFProcessor> loader : loaders) {
+          if (loader.join() != null) {
+            loaded.add(loader.join());
+          }
+        }
+        return loaded;
+      }
+    });
+  }
+
+  public BNFProcessor(String bnffile, String api, String version) throws java.io.IOException {
+    this(bnffile, api, version, null);
+  }
+
+  /**
+   * @param previous the processor of a previous version of the file, whose
+   * unchanged rules are reused rather than parsed again, or null. Without
+   * one, the grammar is read from the snapshot of the file if it is up to date.
+   */
+  BNFProcessor(String bnffile, String api, String version, BNFProcessor previous) throws java.io.IOException {
+    text = new String(Files.readAllBytes(Paths.get(bnffile)));
+    if (previous == null) {
+      grammar = readSnapshot(bnffile, text);
+    }
+    if (grammar == null) {
       BNFToGrammar btg = new BNFToGrammar();
-      grammar = btg.convert(in);
-      logger.info("loaded: " + bnffile);
-      this.api = api;
-      this.version = version;
-    } catch (java.io.FileNotFoundException fne) {
-      logger.severe("File not found: " + bnffile);
-      System.exit(1);
-    } catch (java.io.IOException ioe) {
-      logger.severe("Unable to read from file: " + bnffile);
-      System.exit(1);
+      btg.setForkJoinPool(ForkJoinPool.commonPool());
+      ParseResult result = previous == null ? btg.parse(text) : btg.parse(text, previous.grammar, previous.text);
+      for (ParseResult.Diagnostic diagnostic : result.getDiagnostics()) {
+        logger.log(diagnostic.getSeverity() == ParseResult.Diagnostic.Severity.ERROR ? Level.SEVERE : Level.WARNING,
+                   bnffile + ":" + diagnostic);
+      }
+      if (result.hasErrors()) {
+        // Nothing else was built from the file yet, so a reload can just drop it.
+        throw new IllegalArgumentException("Invalid grammar file: " + bnffile);
+      }
+      grammar = result.getGrammar();
     }
+    grammarHash = grammar.getContentHash();
+    ruleHashes = grammar.getRuleHashes();
+    logger.info("loaded: " + bnffile);
+    this.bnffile = bnffile;
+    this.api = api;
+    this.version = version;
   }
 
-  public String getReferenceFile() {
-    StringBuilder sb = new StringBuilder();
+  /**
+   * @return the grammar of the snapshot of the file (see GrammarSnapshot), or
+   * null if there is none or if it is outdated.
+   */
+  private static Grammar readSnapshot(String bnffile, String text) {
+    File snapshotFile = GrammarSnapshot.getFile(new File(bnffile));
+    try {
+      Grammar grammar = GrammarSnapshot.read(snapshotFile, Utils.sha256(text));
+      if (grammar != null) {
+        logger.info("loaded snapshot: " + snapshotFile);
+      }
+      return grammar;
+    } catch (java.io.IOException e) {
+      logger.warning("Ignoring snapshot " + snapshotFile + ": " + e.getMessage());
+      return null;
+    }
+  }
 
+  /**
+   * Loads the grammar file of the processor again, and swaps the new processor
+   * into the registry. Requests in flight keep using the processor they got,
+   * so they complete against the previous grammar.
+   * @return the new processor, or null if the file could not be loaded (in which
+   * case the previous processor is kept) or if the processor was already replaced.
+   */
+  static BNFProcessor reload(BNFProcessor current) {
+    final BNFProcessor processor;
     try {
-      checkGrammar();
+      processor = new BNFProcessor(current.bnffile, current.api, current.version, current);
+    } catch (java.io.IOException | RuntimeException e) {
+      logger.severe("Unable to reload " + current.bnffile + ", keeping the previous version: " + e);
+      return null;
+    }
+    // unless the registry already moved on to another processor
+    CompletableFuture<BNFProcessor> previous = processors.get(current.getKey());
+    if (previous == null || previous.isCompletedExceptionally() || previous.getNow(null) != current
+        || !processors.replace(current.getKey(), previous, CompletableFuture.completedFuture(processor))) {
+      return null;
+    }
+    return processor;
+  }
 
-      GrammarToBNF bnf_builder = new GrammarToBNF();
-      GrammarToRRDiagram.RuleLinkProvider ruleLinkProvider = new GrammarToRRDiagram.RuleLinkProvider() {
-        private String toLinkName(String name) {
-          return "../grammar_diagrams#" + name.replaceAll("_", "-");
-        }
+  public String getKey() {
+    return String.format("%s-%s", api, version);
+  }
 
-        @Override
-        public String getLink(String ruleName) {
-          return toLinkName(ruleName);
-        }
-      };
+  public long getGeneration() {
+    return generation;
+  }
 
-      for (Rule rule : grammar.getRules()) {
-        try {
-          sb.append("### " + rule.getName() + "\n");
-
-          sb.append("```output.ebnf\n");
-          sb.append(rule.toYBNF());
-          sb.append("\n```\n");
-          GrammarToRRDiagram diagram_builder = new GrammarToRRDiagram();
-          diagram_builder.setRuleLinkProvider(ruleLinkProvider);
-          diagram_builder.setRuleConsideredAsLineBreak(Utils.lineBreakRule);
-
-          RRDiagram diagram = diagram_builder.convert(rule);
-          String svg_string = new RRDiagramToSVG().convert(diagram);
-          sb.append(svg_string);
-          sb.append("\n\n");
-        } catch (Exception e) {
-          logger.severe("Exception occurred while exporting rule " + rule.getName());
-          logger.warning(rule.toBNF(bnf_builder));
-          throw e;
+  public Map<String, String> getRuleHashes() {
+    return ruleHashes;
+  }
+
+  /**
+   * Returns a strong entity tag for a response of this processor. A reference
+   * response depends on the whole grammar, while the other responses only depend
+   * on the rules they render (links to other rules are just names) and on the
+   * (normalized) request. So the tag can be computed without rendering anything,
+   * and survives changes of unrelated rules. It also changes with the build of
+   * RRDiagram, whose output may differ.
+   * @param ruleNames the rules rendered, or null for the reference response.
+   */
+  public String getETag(String requestKey, String[] ruleNames) {
+    StringBuilder sb = new StringBuilder();
+    if (ruleNames == null) {
+      sb.append(grammarHash);
+    } else {
+      for (String ruleName : ruleNames) {
+        sb.append(ruleHashes.get(ruleName)).append(",");
+      }
+    }
+    sb.append("|").append(getKey()).append("|").append(requestKey).append("|").append(rendererHash);
+    return "\"" + Utils.sha256(sb.toString()).substring(0, 32) + "\"";
+  }
+
+  /**
+   * Returns the encoded reference document. It only depends on the grammar, so
+   * it is rendered once for the lifetime of this processor: concurrent callers
+   * wait for the first one to finish rendering instead of rendering it again.
+   * A failed rendering is not kept, the next caller renders it again.
+   */
+  public Response getReferenceResponse() {
+    Response result = referenceFile;
+    if (result == null) {
+      synchronized (this) {
+        result = referenceFile;
+        if (result == null) {
+          result = new Response(getReferenceFile());
+          referenceFile = result;
         }
       }
-    } catch (Exception e) {
-      e.printStackTrace();
+    }
+    return result;
+  }
+
+  /**
+   * @throws RuntimeException if a rule can't be rendered, rather than returning
+   * a truncated document that would be cached.
+   */
+  public String getReferenceFile() {
+    StringBuilder sb = new StringBuilder();
+
+    checkGrammar();
+
+    GrammarToBNF bnf_builder = new GrammarToBNF();
+    GrammarToRRDiagram.RuleLinkProvider ruleLinkProvider = new GrammarToRRDiagram.RuleLinkProvider() {
+      private String toLinkName(String name) {
+        return "../grammar_diagrams#" + name.replaceAll("_", "-");
+      }
+
+      @Override
+      public String getLink(String ruleName) {
+        return toLinkName(ruleName);
+      }
+    };
+
+    for (Rule rule : grammar.getRules()) {
+      try {
+        sb.append("### " + rule.getName() + "\n");
+
+        sb.append("```output.ebnf\n");
+        sb.append(rule.toYBNF());
+        sb.append("\n```\n");
+        GrammarToRRDiagram diagram_builder = new GrammarToRRDiagram();
+        diagram_builder.setRuleLinkProvider(ruleLinkProvider);
+        diagram_builder.setRuleConsideredAsLineBreak(Utils.lineBreakRule);
+
+        RRDiagram diagram = diagram_builder.convert(rule);
+        String svg_string = new RRDiagramToSVG().convert(diagram);
+        sb.append(svg_string);
+        sb.append("\n\n");
+      } catch (Exception e) {
+        logger.severe("Exception occurred while exporting rule " + rule.getName());
+        logger.warning(rule.toBNF(bnf_builder));
+        throw e;
+      }
     }
     return sb.toString();
   }
 
   public String getGrammar(List<Rule> targetRules) {
     StringBuilder sb = new StringBuilder();
-    try {
-      for (int i = 0; i < targetRules.size(); i++) {
-        if (i > 0) {
-          sb.append("\n");
-        }
-        sb.append(targetRules.get(i).toYBNF());
+    for (int i = 0; i < targetRules.size(); i++) {
+      if (i > 0) {
         sb.append("\n");
       }
-    } catch (Exception e) {
-      e.printStackTrace();
+      sb.append(targetRules.get(i).toYBNF());
+      sb.append("\n");
     }
     return sb.toString();
   }
@@ -178,44 +433,40 @@ class BNFProcessor {
 
   public String getDiagram(List<Rule> targetRules, List<Rule> localRules, int depth) {
     StringBuilder sb = new StringBuilder();
-    try {
-      final Set<String> localRefs = new HashSet<String>();
+    final Set<String> localRefs = new HashSet<String>();
 
-      // current rules
-      for (Rule rule : targetRules) {
-        localRefs.add(rule.getName());
-      }
+    // current rules
+    for (Rule rule : targetRules) {
+      localRefs.add(rule.getName());
+    }
 
-      // other rules in the same page
-      for (Rule rule : localRules) {
-        localRefs.add(rule.getName());
-      }
+    // other rules in the same page
+    for (Rule rule : localRules) {
+      localRefs.add(rule.getName());
+    }
 
-      String globalPrefix = getGlobalPrefix(depth);
-      GrammarToRRDiagram.RuleLinkProvider ruleLinkProvider = new GrammarToRRDiagram.RuleLinkProvider() {
-        @Override
-        public String getLink(String ruleName) {
-          String linkName = "#" + ruleName.replaceAll("_", "-");
-          if (!localRefs.contains(ruleName)) {
-            linkName = globalPrefix + linkName;
-          }
-          return linkName;
+    String globalPrefix = getGlobalPrefix(depth);
+    GrammarToRRDiagram.RuleLinkProvider ruleLinkProvider = new GrammarToRRDiagram.RuleLinkProvider() {
+      @Override
+      public String getLink(String ruleName) {
+        String linkName = "#" + ruleName.replaceAll("_", "-");
+        if (!localRefs.contains(ruleName)) {
+          linkName = globalPrefix + linkName;
         }
-      };
-
-      for (Rule rule : targetRules) {
-        sb.append("#### " + rule.getName());
-        sb.append("\n\n");
-        GrammarToRRDiagram diagram_builder = new GrammarToRRDiagram();
-        diagram_builder.setRuleLinkProvider(ruleLinkProvider);
-        diagram_builder.setRuleConsideredAsLineBreak(Utils.lineBreakRule);
-        RRDiagram diagram = diagram_builder.convert(rule);
-        String svg_string = new RRDiagramToSVG().convert(diagram);
-        sb.append(svg_string);
-        sb.append("\n\n");
+        return linkName;
       }
-    } catch (Exception e) {
-      e.printStackTrace();
+    };
+
+    for (Rule rule : targetRules) {
+      sb.append("#### " + rule.getName());
+      sb.append("\n\n");
+      GrammarToRRDiagram diagram_builder = new GrammarToRRDiagram();
+      diagram_builder.setRuleLinkProvider(ruleLinkProvider);
+      diagram_builder.setRuleConsideredAsLineBreak(Utils.lineBreakRule);
+      RRDiagram diagram = diagram_builder.convert(rule);
+      String svg_string = new RRDiagramToSVG().convert(diagram);
+      sb.append(svg_string);
+      sb.append("\n\n");
     }
     return sb.toString();
   }
@@ -224,9 +475,10 @@ class BNFProcessor {
     Set<String> ruleNames = new HashSet<String>();
     ruleNames.add(Utils.lineBreakRule);
     for (Rule rule : grammar.getRules()) {
-      if (!ruleNames.add(rule.getName())) {
-        logger.warning("Rule defined multiple times: " + rule.getName());
-      }
+      ruleNames.add(rule.getName());
+    }
+    for (String ruleName : grammar.getDuplicateRuleNames()) {
+      logger.warning("Rule defined multiple times: " + ruleName);
     }
 
     return ruleNames;
@@ -251,16 +503,10 @@ class BNFProcessor {
 
     try {
       for (String targetRuleName : targetRuleNames) {
-        boolean found = false;
-        for (Rule rule : grammar.getRules()) {
-          if (rule.getName().equals(targetRuleName)) {
-            targetRules.add(rule);
-            found = true;
-            break;
-          }
-        }
-
-        if (!found) {
+        Rule rule = grammar.getRule(targetRuleName);
+        if (rule != null) {
+          targetRules.add(rule);
+        } else {
           logger.severe("Invalid target rule: " + targetRuleName);
         }
       }
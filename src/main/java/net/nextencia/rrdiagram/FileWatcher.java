@@ -0,0 +1,136 @@
+// Copyright (c) YugabyteDB, Inc.
+
+package net.nextencia.rrdiagram;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches files and folder trees, and reports their changes in batches.
+ *
+ * Changes are collected until none happened for the debounce delay, so that a
+ * burst of saves (editors often write a file several times, or through a temp
+ * file) is reported once.
+ */
+class FileWatcher implements Closeable {
+
+  interface Listener {
+    /**
+     * @param paths the changed files and folders (absolute), in the order they
+     * were first reported. A folder is reported when its events were lost.
+     */
+    void changed(Set<Path> paths) throws Exception;
+  }
+
+  private final long debounceMillis;
+  private final WatchService watchService;
+  // watched folder for each key
+  private final Map<WatchKey, Path> folders = new HashMap<WatchKey, Path>();
+  // files watched individually, through their parent folder
+  private final Set<Path> files = new HashSet<Path>();
+  // folders whose content is watched, recursively
+  private final Set<Path> trees = new HashSet<Path>();
+
+  public FileWatcher(long debounceMillis) throws IOException {
+    this.debounceMillis = debounceMillis;
+    this.watchService = FileSystems.getDefault().newWatchService();
+  }
+
+  public synchronized void watchFile(Path file) throws IOException {
+    file = file.toAbsolutePath().normalize();
+    files.add(file);
+    register(file.getParent());
+  }
+
+  public synchronized void watchTree(Path folder) throws IOException {
+    Files.walkFileTree(folder.toAbsolutePath().normalize(), new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        trees.add(dir);
+        register(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  private void register(Path folder) throws IOException {
+    if (!folders.containsValue(folder)) {
+      WatchKey key = folder.register(watchService,
+                                     StandardWatchEventKinds.ENTRY_CREATE,
+                                     StandardWatchEventKinds.ENTRY_DELETE,
+                                     StandardWatchEventKinds.ENTRY_MODIFY);
+      folders.put(key, folder);
+    }
+  }
+
+  /**
+   * Reports changes to the listener until the watcher is closed. Exceptions
+   * thrown by the listener end the loop.
+   */
+  public void run(Listener listener) throws Exception {
+    try {
+      while (true) {
+        Set<Path> changed = new LinkedHashSet<Path>();
+        collect(watchService.take(), changed);
+        WatchKey key;
+        while ((key = watchService.poll(debounceMillis, TimeUnit.MILLISECONDS)) != null) {
+          collect(key, changed);
+        }
+        if (!changed.isEmpty()) {
+          listener.changed(changed);
+        }
+      }
+    } catch (ClosedWatchServiceException e) {
+      // closed
+    }
+  }
+
+  private synchronized void collect(WatchKey key, Set<Path> changed) throws IOException {
+    Path folder = folders.get(key);
+    if (folder == null) {
+      return;
+    }
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+        changed.add(folder);
+        continue;
+      }
+      Path path = folder.resolve((Path) event.context());
+      if (trees.contains(folder)) {
+        changed.add(path);
+        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+          watchTree(path);
+        }
+      } else if (files.contains(path)) {
+        changed.add(path);
+      }
+    }
+    if (!key.reset()) {
+      // the folder is gone
+      folders.remove(key);
+      trees.remove(folder);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    watchService.close();
+  }
+}
@@ -6,33 +6,74 @@ import net.nextencia.rrdiagram.grammar.rrdiagram.RRDiagram;
 import net.nextencia.rrdiagram.grammar.rrdiagram.RRDiagramToSVG;
 
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 public class Main {
 
+  // delay without changes before regenerating in --watch mode
+  private static final long WATCH_DEBOUNCE_MILLIS = 300;
+
   private static void printHelpAndExit() {
-    System.out.println("Usage: java -jar rrdiagram.jar --oldformat <input-file.ebnf> <output-folder>");
+    System.out.println("Usage: java -jar rrdiagram.jar --oldformat [--parallelism <N>] [--watch] <input-file.ebnf> <output-folder>");
     System.out.println("Will re-generate contents for each file in the output folder as follows:");
     System.out.println(" - grammar_diagrams.md: reference file with all grammar&diagram for all rules");
     System.out.println(" - *.diagram.md: diagrams for all rules (comma-separated) from file name");
     System.out.println(" - *.grammar.md: grammars for all rules (comma-separated) from file name");
     System.out.println("Other files with non-matching names will be ignored.");
+    System.out.println("Files are parsed and rendered on N threads with --parallelism N (Default: 1).");
+    System.out.println("Files whose rules didn't change since the previous run are skipped, as recorded");
+    System.out.println("in " + OutputManifest.FILE_NAME + " in the output folder (delete it to regenerate all files).");
+    System.out.println("All files are regenerated when run from a different build of RRDiagram.");
+    System.out.println("With --watch, keeps running and regenerates the affected files whenever the input");
+    System.out.println("file or the output folder change.");
     System.out.println("Example:");
     System.out.println("  java -jar rrdiagram.jar --oldformat "
                        + "docs/content/latest/api/ysql/syntax_resources/ysql_grammar.ebnf "
                        + "docs/content/latest/api/ysql/syntax_resources/");
+    System.out.println("The grammar is read from <input-file.ebnf>" + GrammarSnapshot.FILE_EXTENSION + " instead of being parsed");
+    System.out.println("when that snapshot was made from the current input file, see below.");
+    System.out.println("");
+    System.out.println("Usage: java -jar rrdiagram.jar --write-snapshot <input-file.ebnf>...");
+    System.out.println("Writes the parsed grammar of each input file to <input-file.ebnf>" + GrammarSnapshot.FILE_EXTENSION + ",");
+    System.out.println("which the other modes read instead of parsing the file again.");
     System.out.println("");
     System.out.println("Server Mode:");
     System.out.println("Usage: java -jar rrdiagram.jar --server [--ebnf <input-file.ebnf>] [--debug]");
+    System.out.println("                                    [--cache-size <MB>]");
+    System.out.println("                                    [--executor virtual|fixed:N|forkjoin]");
+    System.out.println("                                    [--gzip-min-size <bytes>]");
+    System.out.println("                                    [--preload <docs-root> [--warmup]]");
     System.out.println("Will run as a http server at localhost:1314/ebnf ");
     System.out.println("and serves diagrams and grammar as per the request params");
+    System.out.println("Responses are cached in memory (Default: 64 MB, 0 disables the cache),");
+    System.out.println("cache counters are available at localhost:1314/stats");
+    System.out.println("Requests are handled by 10 threads unless --executor is set (virtual threads");
+    System.out.println("need JDK 21+, a larger fixed pool is used otherwise).");
+    System.out.println("Responses of at least 1024 bytes (or --gzip-min-size) are gzip-compressed for");
+    System.out.println("clients sending 'Accept-Encoding: gzip'.");
+    System.out.println("Grammar files are reloaded when they change.");
+    System.out.println("With --preload, all the content/*/api/*/syntax_resources/*_grammar.ebnf files of");
+    System.out.println("the docs root are loaded at startup (and their reference rendered with --warmup),");
+    System.out.println("localhost:1314/health reports 'ready' once done.");
     System.out.println("Params:");
     System.out.println(" - api    : Language API name. [ysql, ycql] (Default: ysql)");
     System.out.println(" - version: YB Release version. To load the correct EBNF for a specific version");
@@ -48,6 +89,9 @@ public class Main {
     System.out.println(" - local  : Comma-separated names of rules for which the definition will be xref'ed");
     System.out.println("            to the same page instead of pointing to the definition in the reference file");
     System.out.println("            (eg: local=select_options)");
+    System.out.println("Batch requests can be POSTed to localhost:1314/ebnf/batch?api=..&version=..");
+    System.out.println("with one job per line, using the params above (eg: mode=diagram&rules=select&depth=5).");
+    System.out.println("Results are returned as JSON lines, in the order of the jobs.");
     System.out.flush();
     System.exit(1);
   }
@@ -63,12 +107,49 @@ public class Main {
       return;
     }
 
+    if (args.length > 0 && args[0].equals("--write-snapshot")) {
+      if (args.length == 1) {
+        System.out.println("[ERROR] Invalid number of arguments");
+        printHelpAndExit();
+      }
+      try {
+        for (int i = 1; i < args.length; i++) {
+          writeSnapshot(new File(args[i]));
+        }
+      } catch (RegenerationException e) {
+        logErr(e.getMessage());
+        System.exit(1);
+      }
+      return;
+    }
+
     if (args.length > 0 && !args[0].equals("--oldformat")) {
-      System.out.println("[ERROR] first argument should be either --server or --oldformat");
+      System.out.println("[ERROR] first argument should be either --server, --oldformat or --write-snapshot");
       printHelpAndExit();
     }
 
-    if (args.length != 3) {
+    int parallelism = 1;
+    boolean watch = false;
+    List<String> fileArgs = new ArrayList<String>();
+    for (int i = 1; i < args.length; i++) {
+      switch (args[i]) {
+        case "--parallelism":
+          i++;
+          parallelism = parsePositiveInt(args, i);
+          break;
+        case "--watch":
+          watch = true;
+          break;
+        default:
+          if (args[i].startsWith("--")) {
+            System.out.println("[ERROR] Unsupported argument: " + args[i]);
+            printHelpAndExit();
+          }
+          fileArgs.add(args[i]);
+      }
+    }
+
+    if (fileArgs.size() != 2) {
       System.out.println("[ERROR] Invalid number of arguments");
       printHelpAndExit();
     }
@@ -78,59 +159,484 @@ public class Main {
       System.exit(1);
     }
 
-    String inFileName = args[1];
-    String outFolderName = args[2];
+    String inFileName = fileArgs.get(0);
+    String outFolderName = fileArgs.get(1);
+    File inFile = new File(inFileName);
     File outFolder = new File(outFolderName);
 
-    FileReader in = new java.io.FileReader(inFileName);
-    BNFToGrammar btg = new BNFToGrammar();
-    Grammar grammar = btg.convert(in);
+    String text = readGrammar(inFile);
+    Grammar grammar;
+    try {
+      grammar = parseGrammar(inFile, text, parallelism);
+    } catch (RegenerationException e) {
+      logErr(e.getMessage());
+      System.exit(1);
+      return;
+    }
+    try {
+      regenerate(outFolder, grammar, parallelism);
+    } catch (RegenerationException e) {
+      logErr(e.getMessage());
+      if (!watch) {
+        System.exit(1);
+      }
+    }
+
+    if (watch) {
+      watch(inFile, outFolder, grammar, text, parallelism);
+    }
+  }
+
+  /**
+   * Reported (as an error) when the output folder can't be regenerated.
+   */
+  private static class RegenerationException extends RuntimeException {
+    RegenerationException(String message) {
+      super(message);
+    }
+  }
 
-    regenerateFolder(outFolder, grammar);
+  private static String readGrammar(File inFile) throws IOException {
+    return new String(Files.readAllBytes(inFile.toPath()));
+  }
+
+  /**
+   * Parses the grammar file, unless its snapshot is up to date.
+   */
+  private static Grammar parseGrammar(File inFile, String text, int parallelism) {
+    File snapshotFile = GrammarSnapshot.getFile(inFile);
+    try {
+      Grammar grammar = GrammarSnapshot.read(snapshotFile, Utils.sha256(text));
+      if (grammar != null) {
+        logInfo("Loaded grammar snapshot '" + snapshotFile + "'");
+        return grammar;
+      }
+    } catch (IOException e) {
+      logWarn("Ignoring grammar snapshot '" + snapshotFile + "': " + e.getMessage());
+    }
+    ForkJoinPool pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+    try {
+      BNFToGrammar btg = new BNFToGrammar();
+      btg.setForkJoinPool(pool);
+      return checkGrammar(inFile, btg.parse(text));
+    } finally {
+      if (pool != null) {
+        pool.shutdown();
+      }
+    }
+  }
+
+  private static void writeSnapshot(File inFile) throws IOException {
+    String text = readGrammar(inFile);
+    Grammar grammar = checkGrammar(inFile, new BNFToGrammar().parse(text));
+    File snapshotFile = GrammarSnapshot.getFile(inFile);
+    GrammarSnapshot.write(grammar, Utils.sha256(text), snapshotFile);
+    logInfo("Wrote grammar snapshot '" + snapshotFile + "'");
+  }
+
+  /**
+   * Logs the problems found in the grammar file.
+   * @throws RegenerationException if the grammar has errors.
+   */
+  private static Grammar checkGrammar(File inFile, ParseResult result) {
+    int errorCount = 0;
+    for (ParseResult.Diagnostic diagnostic : result.getDiagnostics()) {
+      if (diagnostic.getSeverity() == ParseResult.Diagnostic.Severity.ERROR) {
+        logErr(inFile.getName() + ":" + diagnostic);
+        errorCount++;
+      } else {
+        logWarn(inFile.getName() + ":" + diagnostic);
+      }
+    }
+    if (errorCount > 0) {
+      throw new RegenerationException("Grammar file '" + inFile + "' has " + errorCount + " error(s)");
+    }
+    return result.getGrammar();
+  }
+
+  private static void regenerate(File outFolder, Grammar grammar,
+                                 int parallelism) throws Exception {
+    List<OutputFile> outputFiles = new ArrayList<OutputFile>();
+    collectFiles(outFolder, grammar, outputFiles);
+    regenerateFiles(outFolder, outputFiles, grammar, OutputManifest.load(outFolder), parallelism);
+  }
+
+  /**
+   * Regenerates the output folder whenever the grammar file or the output folder
+   * change, until the process is stopped. The grammar is only parsed again when
+   * its file changed, and only the affected files are rendered again (see
+   * OutputManifest).
+   */
+  private static void watch(final File inFile, final File outFolder, final Grammar initialGrammar,
+                            final String initialText, final int parallelism) throws Exception {
+    final Path grammarPath = inFile.toPath().toAbsolutePath().normalize();
+    FileWatcher watcher = new FileWatcher(WATCH_DEBOUNCE_MILLIS);
+    watcher.watchFile(grammarPath);
+    watcher.watchTree(outFolder.toPath());
+    logInfo("Watching '" + inFile + "' and '" + outFolder + "' for changes.");
+    watcher.run(new FileWatcher.Listener() {
+      private Grammar grammar = initialGrammar;
+      private String text = initialText;
+
+      @Override
+      public void changed(Set<Path> paths) throws Exception {
+        boolean isGrammarChanged = paths.remove(grammarPath);
+        if (!isGrammarChanged && !isOutputChanged(outFolder, paths)) {
+          return;
+        }
+        if (isGrammarChanged) {
+          try {
+            String newText = readGrammar(inFile);
+            Grammar newGrammar = checkGrammar(inFile, new BNFToGrammar().parse(newText, grammar, text));
+            Set<Rule> previousRules = Collections.newSetFromMap(new IdentityHashMap<Rule, Boolean>());
+            previousRules.addAll(Arrays.asList(grammar.getRules()));
+            int reparsed = 0;
+            for (Rule rule : newGrammar.getRules()) {
+              if (!previousRules.contains(rule)) {
+                reparsed++;
+              }
+            }
+            logInfo("Re-parsed " + reparsed + " rule(s) of grammar file " + inFile.getName());
+            grammar = newGrammar;
+            text = newText;
+          } catch (RegenerationException e) {
+            logErr(e.getMessage() + ", keeping the previous grammar");
+            return;
+          } catch (Exception e) {
+            logErr("Could not parse grammar file '" + inFile + "', keeping the previous grammar: " + e);
+            return;
+          }
+        }
+        try {
+          regenerate(outFolder, grammar, parallelism);
+        } catch (RegenerationException e) {
+          logErr(e.getMessage());
+        } catch (Exception e) {
+          // A rendering or write failure must not end the loop, see FileWatcher.run().
+          logErr("Could not regenerate output folder '" + outFolder + "': " + e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Tells whether some of the changed paths of the output folder were not
+   * written by the previous regeneration itself.
+   */
+  private static boolean isOutputChanged(File outFolder, Set<Path> paths) throws IOException {
+    OutputManifest manifest = OutputManifest.load(outFolder);
+    Path outPath = outFolder.toPath().toAbsolutePath().normalize();
+    for (Path path : paths) {
+      if (path.getFileName().toString().startsWith(".")) {
+        // temp files and manifest
+        continue;
+      }
+      if (manifest != null && Files.isRegularFile(path)) {
+        String hash = manifest.getFileHash(
+            outPath.relativize(path).toString().replace(File.separatorChar, '/'));
+        if (hash != null && hash.equals(Utils.sha256(Files.readAllBytes(path)))) {
+          continue;
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  private static int parsePositiveInt(String[] args, int i) {
+    if (i >= args.length) {
+      System.out.println("[ERROR] Missing value for " + args[i - 1]);
+      printHelpAndExit();
+    }
+    try {
+      int value = Integer.parseInt(args[i]);
+      if (value > 0) {
+        return value;
+      }
+    } catch (NumberFormatException nfe) {
+      // reported below
+    }
+    System.out.println("[ERROR] Invalid value for " + args[i - 1] + ": " + args[i]);
+    printHelpAndExit();
+    return 0;
+  }
+
+  private enum OutputType {
+    REFERENCE,
+    GRAMMAR,
+    DIAGRAM,
+    IGNORED,
+    INVALID_RULE,
+    INVALID_TYPE,
+  }
+
+  /**
+   * A file of the output folder and what has to be rendered into it.
+   */
+  private static class OutputFile {
+    File file;
+    OutputType type;
+    List<Rule> targetRules;
+    // the invalid rule name or export type, for error reporting
+    String invalidName;
+    // path relative to the output folder, see OutputManifest
+    String path;
+    // unchanged since the previous run, so it is not rendered again
+    boolean isUpToDate;
+    Future<String> content;
+
+    OutputFile(File file, OutputType type) {
+      this.file = file;
+      this.type = type;
+    }
   }
 
-  private static void regenerateFolder(File outFolder, Grammar grammar) throws Exception {
+  /**
+   * Lists the files to regenerate in the order they are processed (sorted,
+   * depth-first), so that logs don't depend on the rendering parallelism.
+   */
+  private static void collectFiles(File outFolder, Grammar grammar, List<OutputFile> outputFiles) {
     File[] files = outFolder.listFiles();
     if (files == null) {
-      logErr("Could not get files from subfolder: + " + outFolder);
-      System.exit(1);
+      throw new RegenerationException("Could not get files from subfolder: + " + outFolder);
     }
 
     Arrays.sort(files);
     for (File file : files) {
       if (file.isDirectory()) {
-        regenerateFolder(file, grammar);
+        collectFiles(file, grammar, outputFiles);
       } else {
         String fileName = file.getName();
+        if (fileName.equals(OutputManifest.FILE_NAME)) {
+          continue;
+        }
         if (fileName.equals("grammar_diagrams.md")) {
-          logInfo("Re-generating reference file " + fileName);
-          regenerateReferenceFile(grammar, file);
+          outputFiles.add(new OutputFile(file, OutputType.REFERENCE));
         } else {
           String[] comps = fileName.split("\\.");
           if (comps.length != 3 || !comps[2].equals("md")) {
-            logWarn("Ignoring file '" + file.getCanonicalPath() + "'. ");
+            outputFiles.add(new OutputFile(file, OutputType.IGNORED));
             continue;
           }
 
-          List<Rule> targetRules = getTargetRules(comps[0].split(","), grammar);
+          OutputFile outputFile = new OutputFile(file, OutputType.INVALID_TYPE);
+          outputFile.invalidName = comps[1];
           if (comps[1].equals("grammar")) {
-            logInfo("Re-generating grammar file " + fileName);
-            reGenerateGrammar(file, targetRules);
+            outputFile.type = OutputType.GRAMMAR;
           } else if (comps[1].equals("diagram")) {
-            logInfo("Re-generating diagram file " + fileName);
-            reGenerateDiagram(file, targetRules);
-          } else {
-            logErr("Invalid export type '" + comps[1] + "' for file '" + file.getCanonicalPath() + "'. ");
-            System.exit(1);
+            outputFile.type = OutputType.DIAGRAM;
+          }
+          outputFile.targetRules = new ArrayList<Rule>();
+          for (String targetRuleName : comps[0].split(",")) {
+            Rule rule = grammar.getRule(targetRuleName);
+            if (rule == null) {
+              outputFile.type = OutputType.INVALID_RULE;
+              outputFile.invalidName = targetRuleName;
+              break;
+            }
+            outputFile.targetRules.add(rule);
           }
+          outputFiles.add(outputFile);
         }
       }
     }
   }
 
-  private static void regenerateReferenceFile(Grammar grammar, File outFile) throws Exception {
-    checkGrammar(grammar);
+  private static void regenerateFiles(File outFolder, List<OutputFile> outputFiles,
+                                      final Grammar grammar, OutputManifest previous,
+                                      int parallelism) throws Exception {
+    OutputManifest manifest = new OutputManifest();
+    manifest.grammarHash = grammar.getContentHash();
+    manifest.ruleHashes = grammar.getRuleHashes();
+
+    Set<String> changedRules = null;
+    if (previous != null) {
+      changedRules = RuleDependencyGraph.getChangedRules(previous.ruleHashes, manifest.ruleHashes);
+      logInfo(changedRules.size() + " rule(s) changed since the previous run.");
+      RuleDependencyGraph graph = new RuleDependencyGraph(grammar);
+      for (String ruleName : changedRules) {
+        Set<String> referrers = graph.getReferrers(ruleName);
+        if (!manifest.ruleHashes.containsKey(ruleName) && !referrers.isEmpty()) {
+          logWarn("Rule '" + ruleName + "' was removed but is still referenced by: "
+                  + new TreeSet<String>(referrers));
+        }
+      }
+    }
 
+    int written = 0;
+    int skipped = 0;
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    try {
+      for (final OutputFile outputFile : outputFiles) {
+        switch (outputFile.type) {
+          case REFERENCE:
+          case GRAMMAR:
+          case DIAGRAM:
+            outputFile.path = outFolder.toPath().relativize(outputFile.file.toPath())
+                .toString().replace(File.separatorChar, '/');
+            outputFile.isUpToDate = isUpToDate(outputFile, previous, manifest, changedRules);
+            if (outputFile.isUpToDate) {
+              break;
+            }
+            outputFile.content = pool.submit(new Callable<String>() {
+              @Override
+              public String call() throws Exception {
+                return render(outputFile, grammar);
+              }
+            });
+            break;
+          default:
+            break;
+        }
+      }
+
+      // Files are rendered concurrently but logged and written in order.
+      for (OutputFile outputFile : outputFiles) {
+        String fileName = outputFile.file.getName();
+        if (outputFile.isUpToDate) {
+          manifest.setFileHash(outputFile.path, previous.getFileHash(outputFile.path));
+          skipped++;
+          continue;
+        }
+        switch (outputFile.type) {
+          case REFERENCE:
+            logInfo("Re-generating reference file " + fileName);
+            checkGrammar(grammar);
+            break;
+          case GRAMMAR:
+            logInfo("Re-generating grammar file " + fileName);
+            break;
+          case DIAGRAM:
+            logInfo("Re-generating diagram file " + fileName);
+            break;
+          case IGNORED:
+            logWarn("Ignoring file '" + outputFile.file.getCanonicalPath() + "'. ");
+            continue;
+          case INVALID_RULE:
+            throw new RegenerationException("Invalid target rule: " + outputFile.invalidName);
+          case INVALID_TYPE:
+            throw new RegenerationException("Invalid export type '" + outputFile.invalidName
+                                            + "' for file '" + outputFile.file.getCanonicalPath() + "'. ");
+        }
+        byte[] content = getContent(outputFile.content).getBytes();
+        manifest.setFileHash(outputFile.path, Utils.sha256(content));
+        if (writeFile(outputFile.file, content)) {
+          written++;
+        } else {
+          skipped++;
+        }
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+    writeFile(new File(outFolder, OutputManifest.FILE_NAME),
+              manifest.toText().getBytes(StandardCharsets.UTF_8));
+    logInfo("Wrote " + written + " file(s), skipped " + skipped + " unchanged file(s).");
+  }
+
+  /**
+   * A file is up to date if it still has the content written by the previous
+   * run, and if the rules it renders didn't change since. Diagrams only link
+   * to the rules they reference, so changes of those don't matter.
+   */
+  private static boolean isUpToDate(OutputFile outputFile, OutputManifest previous,
+                                    OutputManifest manifest,
+                                    Set<String> changedRules) throws IOException {
+    if (previous == null || previous.getFileHash(outputFile.path) == null
+        || !outputFile.file.isFile()) {
+      return false;
+    }
+    if (outputFile.type == OutputType.REFERENCE) {
+      if (!manifest.grammarHash.equals(previous.grammarHash)) {
+        return false;
+      }
+    } else {
+      for (Rule rule : outputFile.targetRules) {
+        if (changedRules.contains(rule.getName())) {
+          return false;
+        }
+      }
+    }
+    byte[] content = Files.readAllBytes(outputFile.file.toPath());
+    return previous.getFileHash(outputFile.path).equals(Utils.sha256(content));
+  }
+
+  private static String render(OutputFile outputFile, Grammar grammar) throws Exception {
+    switch (outputFile.type) {
+      case REFERENCE:
+        return renderReferenceFile(grammar);
+      case GRAMMAR:
+        return renderGrammar(outputFile.targetRules);
+      case DIAGRAM:
+        return renderDiagram(outputFile.file, outputFile.targetRules);
+      default:
+        throw new IllegalStateException("Nothing to render for " + outputFile.type);
+    }
+  }
+
+  private static String getContent(Future<String> content) throws Exception {
+    try {
+      return content.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Writes the content unless the file already has it, so that unchanged files
+   * keep their modification time. The file is replaced atomically so that a
+   * reader never sees it half-written. A symbolic link is written through: its
+   * target is replaced, and the replacement keeps the permissions, owner and
+   * group of the file it replaces.
+   * @return true if the file was written.
+   */
+  private static boolean writeFile(File outFile, byte[] bytes) throws IOException {
+    Path outPath = outFile.toPath();
+    if (Files.isRegularFile(outPath) && Files.size(outPath) == bytes.length
+        && Arrays.equals(Files.readAllBytes(outPath), bytes)) {
+      return false;
+    }
+
+    if (Files.exists(outPath)) {
+      outPath = outPath.toRealPath();
+    }
+    Path tmpPath = outPath.resolveSibling("." + outPath.getFileName() + ".tmp");
+    Files.write(tmpPath, bytes);
+    if (Files.exists(outPath)) {
+      copyAttributes(outPath, tmpPath);
+    }
+    try {
+      Files.move(tmpPath, outPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(tmpPath, outPath, StandardCopyOption.REPLACE_EXISTING);
+    }
+    return true;
+  }
+
+  private static void copyAttributes(Path fromPath, Path toPath) throws IOException {
+    PosixFileAttributeView toView = Files.getFileAttributeView(toPath, PosixFileAttributeView.class);
+    if (toView == null) {
+      return;
+    }
+    PosixFileAttributes attributes = Files.readAttributes(fromPath, PosixFileAttributes.class);
+    toView.setPermissions(attributes.permissions());
+    // Only the owner of the file, or root, can give it away: keep what is allowed.
+    try {
+      if (!attributes.group().equals(toView.readAttributes().group())) {
+        toView.setGroup(attributes.group());
+      }
+      if (!attributes.owner().equals(toView.getOwner())) {
+        toView.setOwner(attributes.owner());
+      }
+    } catch (IOException e) {
+      // the file now belongs to whoever regenerates it, as a new file would
+    }
+  }
+
+  private static String renderReferenceFile(Grammar grammar) throws Exception {
     GrammarToBNF bnf_builder = new GrammarToBNF();
     GrammarToRRDiagram.RuleLinkProvider ruleLinkProvider =
         new GrammarToRRDiagram.RuleLinkProvider() {
@@ -144,57 +650,57 @@ public class Main {
           }
         };
 
-    PrintWriter pw = new java.io.PrintWriter(outFile);
-    pw.write("---\n");
-    pw.write("title: Grammar Diagrams\n");
-    pw.write("summary: Diagrams of the grammar rules.\n");
-    pw.write("type: docs\n");
-    pw.write("private: true\n");
-    pw.write("---\n\n");
+    StringBuilder sb = new StringBuilder();
+    sb.append("---\n");
+    sb.append("title: Grammar Diagrams\n");
+    sb.append("summary: Diagrams of the grammar rules.\n");
+    sb.append("type: docs\n");
+    sb.append("private: true\n");
+    sb.append("---\n\n");
 
     for (Rule rule : grammar.getRules()) {
       try {
-        pw.write("### " + rule.getName() + "\n");
+        sb.append("### " + rule.getName() + "\n");
 
         /*
           // Debug mode.
-          pw.write("```output.ebnf\n");
-          pw.write(rule.toBNF(bnf_builder));
-          pw.write("\n```\n");
+          sb.append("```output.ebnf\n");
+          sb.append(rule.toBNF(bnf_builder));
+          sb.append("\n```\n");
         */
 
-        pw.write("```output.ebnf\n");
-        pw.write(rule.toYBNF());
-        pw.write("\n```\n");
+        sb.append("```output.ebnf\n");
+        sb.append(rule.toYBNF());
+        sb.append("\n```\n");
         GrammarToRRDiagram diagram_builder = new GrammarToRRDiagram();
         diagram_builder.setRuleLinkProvider(ruleLinkProvider);
         diagram_builder.setRuleConsideredAsLineBreak(Utils.lineBreakRule);
 
         RRDiagram diagram = diagram_builder.convert(rule);
         String svg_string = new RRDiagramToSVG().convert(diagram);
-        pw.write(svg_string);
-        pw.write("\n\n");
+        sb.append(svg_string);
+        sb.append("\n\n");
       } catch (Exception e) {
         logWarn("Exception occurred while exporting rule " + rule.getName());
         logWarn(rule.toBNF(bnf_builder));
         throw e;
       }
     }
-    pw.close();
+    return sb.toString();
   }
 
-  private static void reGenerateGrammar(File outFile, List<Rule> targetRules) throws Exception {
-    PrintWriter pw = new java.io.PrintWriter(outFile);
-    pw.write("```output.ebnf\n");
+  private static String renderGrammar(List<Rule> targetRules) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("```output.ebnf\n");
     for (int i = 0; i < targetRules.size(); i++) {
       if (i > 0) {
-        pw.write("\n");
+        sb.append("\n");
       }
-      pw.write(targetRules.get(i).toYBNF());
-      pw.write("\n");
+      sb.append(targetRules.get(i).toYBNF());
+      sb.append("\n");
     }
-    pw.write("```\n");
-    pw.close();
+    sb.append("```\n");
+    return sb.toString();
   }
 
   private static String getGlobalRulePrefix(File diagFile) {
@@ -206,14 +712,12 @@ public class Main {
         file = file.getParentFile();
       }
       if (file == null) {
-        logErr("Invalid file path '" + diagFile + "'.\n"
-               + "Expected to have an ancestor called 'syntax_resources'.");
-        System.exit(1);
+        throw new RegenerationException("Invalid file path '" + diagFile + "'.\n"
+                                        + "Expected to have an ancestor called 'syntax_resources'.");
       }
     } catch (IOException exception) {
-      logErr("Caught IOException while trying to get the canonical file of '"
-             + diagFile + "': " + exception);
-      System.exit(1);
+      throw new RegenerationException("Caught IOException while trying to get the canonical file of '"
+                                      + diagFile + "': " + exception);
     }
     sb.append("syntax_resources/grammar_diagrams");
     return sb.toString();
@@ -229,8 +733,8 @@ public class Main {
     return linkName;
   }
 
-  private static void reGenerateDiagram(final File outFile,
-                                        List<Rule> targetRules) throws Exception {
+  private static String renderDiagram(final File outFile,
+                                      List<Rule> targetRules) throws Exception {
     final Set<String> targetRuleNames = new HashSet<String>();
     for (Rule rule : targetRules) {
       targetRuleNames.add(rule.getName());
@@ -244,49 +748,29 @@ public class Main {
           }
         };
 
-    PrintWriter pw = new java.io.PrintWriter(outFile);
+    StringBuilder sb = new StringBuilder();
     for (Rule rule : targetRules) {
-      pw.write("#### " + rule.getName());
-      pw.write("\n\n");
+      sb.append("#### " + rule.getName());
+      sb.append("\n\n");
       GrammarToRRDiagram diagram_builder = new GrammarToRRDiagram();
       diagram_builder.setRuleLinkProvider(ruleLinkProvider);
       diagram_builder.setRuleConsideredAsLineBreak(Utils.lineBreakRule);
       RRDiagram diagram = diagram_builder.convert(rule);
       String svg_string = new RRDiagramToSVG().convert(diagram);
-      pw.write(svg_string);
-      pw.write("\n\n");
-    }
-    pw.close();
-  }
-
-  private static List<Rule> getTargetRules(String[] targetRuleNames,
-                                           Grammar grammar) throws Exception {
-    List<Rule> targetRules = new ArrayList<Rule>();
-    for (String targetRuleName : targetRuleNames) {
-      boolean found = false;
-      for (Rule rule : grammar.getRules()) {
-        if (rule.getName().equals(targetRuleName)) {
-          targetRules.add(rule);
-          found = true;
-          break;
-        }
-      }
-      if (!found) {
-        logErr("Invalid target rule: " + targetRuleName);
-        System.exit(1);
-      }
+      sb.append(svg_string);
+      sb.append("\n\n");
     }
-
-    return targetRules;
+    return sb.toString();
   }
 
   private static Set<String> getRuleNames(Grammar grammar) {
     Set<String> ruleNames = new HashSet<String>();
     ruleNames.add(Utils.lineBreakRule);
     for (Rule rule : grammar.getRules()) {
-      if (!ruleNames.add(rule.getName())) {
-        logWarn("Rule defined multiple times: " + rule.getName());
-      }
+      ruleNames.add(rule.getName());
+    }
+    for (String ruleName : grammar.getDuplicateRuleNames()) {
+      logWarn("Rule defined multiple times: " + ruleName);
     }
 
     return ruleNames;
@@ -0,0 +1,111 @@
+// Copyright (c) YugabyteDB, Inc.
+
+package net.nextencia.rrdiagram;
+
+import net.nextencia.rrdiagram.common.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * What the previous --oldformat run generated in an output folder: the hash of
+ * the grammar and of each of its rules, and the hash of each file written.
+ * It also records the code that rendered the files, so that a new version of
+ * RRDiagram (whose output may differ) regenerates all of them.
+ *
+ * A file is up to date when its content still has the recorded hash and none
+ * of the rules it renders changed since. The manifest is a text file with one
+ * entry per line:
+ * <pre>
+ * format 2
+ * renderer &lt;hash of the jar or classes&gt;
+ * grammar &lt;hash&gt;
+ * rule &lt;name&gt; &lt;hash&gt;
+ * file &lt;hash&gt; &lt;path relative to the output folder&gt;
+ * </pre>
+ * Deleting it forces all the files to be regenerated.
+ */
+class OutputManifest {
+  static final String FILE_NAME = ".rrdiagram-manifest";
+  private static final String FORMAT = "2";
+
+
+  String rendererHash = Utils.getBuildHash();
+  String grammarHash;
+  // rule name -> hash, in definition order
+  Map<String, String> ruleHashes = new LinkedHashMap<String, String>();
+  // relative path -> hash of the content
+  Map<String, String> fileHashes = new TreeMap<String, String>();
+
+  /**
+   * @return the manifest of the output folder, or null if there is none or if it can't be used.
+   */
+  static OutputManifest load(File outFolder) throws IOException {
+    File file = new File(outFolder, FILE_NAME);
+    if (!file.isFile()) {
+      return null;
+    }
+
+    OutputManifest manifest = new OutputManifest();
+    String format = null;
+    List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+    for (String line : lines) {
+      String[] comps = line.split(" ", 3);
+      switch (comps[0]) {
+        case "format":
+          format = comps[1];
+          break;
+        case "renderer":
+          manifest.rendererHash = comps[1];
+          break;
+        case "grammar":
+          manifest.grammarHash = comps[1];
+          break;
+        case "rule":
+          manifest.ruleHashes.put(comps[1], comps[2]);
+          break;
+        case "file":
+          manifest.fileHashes.put(comps[2], comps[1]);
+          break;
+        default:
+          break;
+      }
+    }
+    if (!FORMAT.equals(format)) {
+      return null;
+    }
+    // Files rendered by another version may differ even for unchanged rules.
+    String renderer = Utils.getBuildHash();
+    return renderer != null && renderer.equals(manifest.rendererHash) ? manifest : null;
+  }
+
+  String getFileHash(String path) {
+    return fileHashes.get(path);
+  }
+
+  void setFileHash(String path, String hash) {
+    fileHashes.put(path, hash);
+  }
+
+  String toText() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("format ").append(FORMAT).append("\n");
+    if (rendererHash != null) {
+      sb.append("renderer ").append(rendererHash).append("\n");
+    }
+    sb.append("grammar ").append(grammarHash).append("\n");
+    for (Map.Entry<String, String> entry : ruleHashes.entrySet()) {
+      sb.append("rule ").append(entry.getKey()).append(" ").append(entry.getValue()).append("\n");
+    }
+    for (Map.Entry<String, String> entry : fileHashes.entrySet()) {
+      sb.append("file ").append(entry.getValue()).append(" ").append(entry.getKey()).append("\n");
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,57 @@
+// Copyright (c) YugabyteDB, Inc.
+
+package net.nextencia.rrdiagram;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encoded body of a rendered response, along with its gzip variant so that a
+ * cached response is only compressed once.
+ */
+class Response {
+  // responses smaller than this (in bytes) are not worth compressing
+  static int gzipMinSize = 1024;
+
+  private final byte[] content;
+  private final byte[] gzipContent;
+
+  public Response(byte[] content) {
+    this.content = content;
+    this.gzipContent = content.length >= gzipMinSize ? gzip(content) : null;
+  }
+
+  public Response(String content) {
+    this(content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  public byte[] getContent() {
+    return content;
+  }
+
+  /**
+   * @return the gzip-compressed content, or null if the content was too small to be compressed.
+   */
+  public byte[] getGzipContent() {
+    return gzipContent;
+  }
+
+  public int size() {
+    return content.length + (gzipContent == null ? 0 : gzipContent.length);
+  }
+
+  private static byte[] gzip(byte[] content) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length / 4);
+      GZIPOutputStream gzipStream = new GZIPOutputStream(bytes);
+      gzipStream.write(content);
+      gzipStream.close();
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      // Doesn't happen
+      throw new RuntimeException(e);
+    }
+  }
+}
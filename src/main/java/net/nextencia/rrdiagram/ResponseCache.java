@@ -0,0 +1,170 @@
+// Copyright (c) YugabyteDB, Inc.
+
+package net.nextencia.rrdiagram;
+
+import net.nextencia.rrdiagram.grammar.model.RuleDependencyGraph;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * LRU cache for the responses of the /ebnf endpoint.
+ *
+ * The budget is expressed in bytes rather than in number of entries since the
+ * size of a response grows with the number of rules it renders. Both the plain
+ * and the compressed variants of a response count against the budget.
+ * Entries are tagged with the generation of the BNFProcessor that rendered
+ * them and with the rules they render, so that reloading a grammar only drops
+ * the responses of the rules that changed.
+ */
+class ResponseCache {
+  static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+  private static class Entry {
+    String processorKey;
+    Set<String> ruleNames;
+    Response content;
+
+    Entry(String processorKey, Set<String> ruleNames, Response content) {
+      this.processorKey = processorKey;
+      this.ruleNames = ruleNames;
+      this.content = content;
+    }
+  }
+
+  // the processor the cached entries of an api-version were rendered from
+  private static class Source {
+    long generation;
+    Map<String, String> ruleHashes;
+
+    Source(BNFProcessor processor) {
+      this.generation = processor.getGeneration();
+      this.ruleHashes = processor.getRuleHashes();
+    }
+  }
+
+  private final long maxBytes;
+  private long currentBytes = 0;
+
+  // access-ordered, so that iteration starts with the least recently used entry
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  // api-version -> processor the cached entries were rendered from
+  private final Map<String, Source> sources = new HashMap<String, Source>();
+
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+  private long invalidations = 0;
+
+  public ResponseCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  private static String toCacheKey(BNFProcessor processor, String requestKey) {
+    return processor.getKey() + "|" + requestKey;
+  }
+
+  public synchronized Response get(BNFProcessor processor, String requestKey) {
+    if (!checkGeneration(processor)) {
+      misses++;
+      return null;
+    }
+    Entry entry = entries.get(toCacheKey(processor, requestKey));
+    if (entry == null) {
+      misses++;
+      return null;
+    }
+    hits++;
+    return entry.content;
+  }
+
+  /**
+   * @param ruleNames the rules the content renders.
+   */
+  public synchronized void put(BNFProcessor processor, String requestKey,
+                               Set<String> ruleNames, Response content) {
+    if (!checkGeneration(processor) || content.size() > maxBytes) {
+      return;
+    }
+    String key = toCacheKey(processor, requestKey);
+    Entry previous = entries.put(key, new Entry(processor.getKey(), ruleNames, content));
+    if (previous != null) {
+      currentBytes -= previous.content.size();
+    }
+    currentBytes += content.size();
+
+    Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+    while (currentBytes > maxBytes && it.hasNext()) {
+      Entry eldest = it.next().getValue();
+      it.remove();
+      currentBytes -= eldest.content.size();
+      evictions++;
+    }
+  }
+
+  /**
+   * Drops all the entries rendered for the given api-version.
+   */
+  public synchronized void invalidate(String processorKey) {
+    invalidate(processorKey, null);
+  }
+
+  /**
+   * Drops the entries rendered for the given api-version that render any of
+   * the given rules, or all of them if changedRules is null.
+   */
+  private void invalidate(String processorKey, Set<String> changedRules) {
+    Iterator<Entry> it = entries.values().iterator();
+    while (it.hasNext()) {
+      Entry entry = it.next();
+      if (entry.processorKey.equals(processorKey)
+          && (changedRules == null || !Collections.disjoint(entry.ruleNames, changedRules))) {
+        it.remove();
+        currentBytes -= entry.content.size();
+        invalidations++;
+      }
+    }
+  }
+
+  /**
+   * Drops the entries made obsolete by a newly loaded processor right away,
+   * rather than on the next request for its api-version.
+   */
+  public synchronized void refresh(BNFProcessor processor) {
+    checkGeneration(processor);
+  }
+
+  /**
+   * Returns false if the processor is older than the one the cache is tracking
+   * for the same api-version (e.g. a request still running against a grammar
+   * that was reloaded in the meantime). Such responses must not be cached.
+   */
+  private boolean checkGeneration(BNFProcessor processor) {
+    Source known = sources.get(processor.getKey());
+    if (known == null || known.generation < processor.getGeneration()) {
+      if (known != null) {
+        invalidate(processor.getKey(),
+                   RuleDependencyGraph.getChangedRules(known.ruleHashes, processor.getRuleHashes()));
+      }
+      sources.put(processor.getKey(), new Source(processor));
+      return true;
+    }
+    return known.generation == processor.getGeneration();
+  }
+
+  public synchronized String getStats() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("entries: ").append(entries.size()).append("\n");
+    sb.append("bytes: ").append(currentBytes).append("\n");
+    sb.append("max_bytes: ").append(maxBytes).append("\n");
+    sb.append("hits: ").append(hits).append("\n");
+    sb.append("misses: ").append(misses).append("\n");
+    sb.append("evictions: ").append(evictions).append("\n");
+    sb.append("invalidations: ").append(invalidations).append("\n");
+    return sb.toString();
+  }
+}
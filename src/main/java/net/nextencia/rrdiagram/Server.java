@@ -8,35 +8,58 @@ import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 import java.net.InetSocketAddress;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.File;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 import java.util.logging.LogManager;
 import java.util.logging.Handler;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.net.URLDecoder;
 import java.net.URI;
 
 interface HttpCodes {
   int OK = 200;
+  int NOT_MODIFIED = 304;
   int BAD_REQUEST = 400;
   int NOT_FOUND = 404;
+  int INTERNAL_ERROR = 500;
+  int SERVICE_UNAVAILABLE = 503;
 }
 
 class Helper {
   public static boolean writeHTTPResponse(HttpExchange httpExchange, int responseCode, String content,
       String contentType) {
+    return writeHTTPResponse(httpExchange, responseCode, content.getBytes(), contentType);
+  }
+
+  public static boolean writeHTTPResponse(HttpExchange httpExchange, int responseCode, byte[] content,
+      String contentType) {
     try {
       OutputStream outputStream = httpExchange.getResponseBody();
       httpExchange.getResponseHeaders().set("Content-Type", contentType);
-      httpExchange.sendResponseHeaders(responseCode, content.length());
-      outputStream.write(content.getBytes());
+      httpExchange.sendResponseHeaders(responseCode, content.length);
+      outputStream.write(content);
       outputStream.flush();
       outputStream.close();
       return true;
@@ -49,6 +72,136 @@ class Helper {
   public static boolean writeHTTPResponse(HttpExchange httpExchange, int responseCode, String content) {
     return writeHTTPResponse(httpExchange, responseCode, content, "text/plain; charset=us-ascii");
   }
+
+  /**
+   * Writes the gzip variant of the response if there is one and the client accepts it.
+   */
+  public static boolean writeHTTPResponse(HttpExchange httpExchange, int responseCode, Response response,
+      String etag) {
+    httpExchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+    if (response.getGzipContent() != null && acceptsGzip(httpExchange)) {
+      httpExchange.getResponseHeaders().set("Content-Encoding", "gzip");
+      httpExchange.getResponseHeaders().set("ETag", gzipETag(etag));
+      return writeHTTPResponse(httpExchange, responseCode, response.getGzipContent(), "text/plain; charset=us-ascii");
+    }
+    httpExchange.getResponseHeaders().set("ETag", etag);
+    return writeHTTPResponse(httpExchange, responseCode, response.getContent(), "text/plain; charset=us-ascii");
+  }
+
+  /**
+   * @param isGzip whether the response would be written gzip-compressed, whose
+   * tag is then the one of the gzip variant, like in writeHTTPResponse().
+   */
+  public static boolean writeNotModified(HttpExchange httpExchange, String etag, boolean isGzip) {
+    try {
+      httpExchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+      httpExchange.getResponseHeaders().set("ETag", isGzip ? gzipETag(etag) : etag);
+      httpExchange.sendResponseHeaders(HttpCodes.NOT_MODIFIED, -1);
+      httpExchange.close();
+      return true;
+    } catch (java.io.IOException e) {
+      e.printStackTrace(System.out);
+      return false;
+    }
+  }
+
+  public static String toJSONString(String s) {
+    StringBuilder sb = new StringBuilder(s.length() + 16);
+    sb.append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+        case '"':
+          sb.append("\\\"");
+          break;
+        case '\\':
+          sb.append("\\\\");
+          break;
+        case '\n':
+          sb.append("\\n");
+          break;
+        case '\r':
+          sb.append("\\r");
+          break;
+        case '\t':
+          sb.append("\\t");
+          break;
+        default:
+          if (c < 0x20) {
+            sb.append(String.format("\\u%04x", (int) c));
+          } else {
+            sb.append(c);
+          }
+          break;
+      }
+    }
+    sb.append('"');
+    return sb.toString();
+  }
+
+  // strong tags must differ between encodings of the same response
+  static String gzipETag(String etag) {
+    return etag.substring(0, etag.length() - 1) + "-gzip\"";
+  }
+
+  /**
+   * Checks If-None-Match against the tag of either encoding of the response,
+   * using the weak comparison mandated for this header.
+   */
+  public static boolean isNotModified(HttpExchange httpExchange, String etag) {
+    return matchesIfNoneMatch(httpExchange, "*") || matchesIfNoneMatch(httpExchange, etag)
+        || matchesIfNoneMatch(httpExchange, gzipETag(etag));
+  }
+
+  /**
+   * @return whether If-None-Match lists that tag.
+   */
+  public static boolean matchesIfNoneMatch(HttpExchange httpExchange, String etag) {
+    List<String> headers = httpExchange.getRequestHeaders().get("If-None-Match");
+    if (headers == null) {
+      return false;
+    }
+    for (String header : headers) {
+      for (String tag : header.split(",")) {
+        tag = tag.trim();
+        if (tag.startsWith("W/")) {
+          tag = tag.substring(2);
+        }
+        if (tag.equals(etag)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  public static boolean acceptsGzip(HttpExchange httpExchange) {
+    List<String> headers = httpExchange.getRequestHeaders().get("Accept-Encoding");
+    if (headers == null) {
+      return false;
+    }
+    for (String header : headers) {
+      for (String coding : header.split(",")) {
+        // e.g. "gzip;q=0.8", where q=0 means "not acceptable"
+        String[] parts = coding.split(";");
+        String name = parts[0].trim();
+        if (!name.equalsIgnoreCase("gzip") && !name.equals("*")) {
+          continue;
+        }
+        boolean rejected = false;
+        for (int i = 1; i < parts.length; i++) {
+          String param = parts[i].replaceAll("\\s", "");
+          if (param.matches("q=0(\\.0*)?")) {
+            rejected = true;
+          }
+        }
+        if (!rejected) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
 }
 
 class ServerException
@@ -68,10 +221,147 @@ class BadRequest
   }
 }
 
+/**
+ * Validated parameters of a grammar/diagram/reference request.
+ */
+class BNFRequest {
+  String mode;
+  String rules;
+  String strrules[] = null;
+  String localrefs[] = null;
+  int depth = 0;
+
+  public BNFRequest(Map<String, String> params) throws BadRequest {
+    if (!params.containsKey("mode")) {
+      throw new BadRequest("no mode specified");
+    }
+    mode = params.get("mode");
+    if (mode.equals("grammar") || mode.equals("diagram")) {
+      if (params.containsKey("rules")) {
+        rules = params.get("rules");
+        strrules = rules.split(",");
+      }
+
+      if (params.containsKey("local")) {
+        localrefs = cleanString(params.get("local")).split(",");
+      }
+
+      if (params.containsKey("depth")) {
+        try {
+          depth = Integer.parseInt(params.get("depth"));
+        } catch (NumberFormatException nfe) {
+          throw new BadRequest("invalid depth:" + params.get("depth"));
+        }
+      }
+
+      if (depth == 0) {
+        throw new BadRequest("depth should be > 0");
+      }
+
+      if (strrules == null || strrules.length == 0) {
+        throw new BadRequest("No rules specified");
+      }
+    } else if (!mode.equals("reference")) {
+      throw new BadRequest("invalid mode specified - " + mode);
+    }
+  }
+
+  public static String cleanString(String input) {
+    // whitespaces
+    input = input.replaceAll("\\s*", "");
+    // leading ,
+    input = input.replaceAll("^,+", "");
+    // trailing ,
+    input = input.replaceAll(",+$", "");
+    // multiple ,
+    input = input.replaceAll(",+", ",");
+    return input;
+  }
+
+  /**
+   * Normalized form of the request parameters, used to derive the ETag before
+   * looking up any rule.
+   */
+  public String getETagKey() {
+    StringBuilder sb = new StringBuilder(mode);
+    if (rules != null) {
+      sb.append("|rules=").append(rules);
+    }
+    if (mode.equals("diagram")) {
+      Set<String> localRefs = new TreeSet<String>();
+      if (localrefs != null) {
+        for (String localref : localrefs) {
+          localRefs.add(localref);
+        }
+      }
+      sb.append("|local=").append(String.join(",", localRefs));
+      sb.append("|depth=").append(depth);
+    }
+    return sb.toString();
+  }
+
+  public String getETag(BNFProcessor bnfprocessor) {
+    return bnfprocessor.getETag(getETagKey(), mode.equals("reference") ? null : strrules);
+  }
+
+  /**
+   * Normalized form of the request, used as the cache key. Target rules keep
+   * the requested order since they are rendered in that order, while local
+   * rules only matter as a set.
+   */
+  public String getRequestKey(List<Rule> rules, List<Rule> localrules) {
+    StringBuilder sb = new StringBuilder(mode);
+    sb.append("|rules=");
+    for (Rule rule : rules) {
+      sb.append(rule.getName()).append(",");
+    }
+    if (mode.equals("diagram")) {
+      Set<String> localRefs = new TreeSet<String>();
+      for (Rule rule : localrules) {
+        localRefs.add(rule.getName());
+      }
+      sb.append("|local=").append(String.join(",", localRefs));
+      sb.append("|depth=").append(depth);
+    }
+    return sb.toString();
+  }
+
+  public Response render(BNFProcessor bnfprocessor, ResponseCache responseCache) {
+    if (mode.equals("reference")) {
+      // memoized by the processor itself, no need to spend the cache budget on it
+      return bnfprocessor.getReferenceResponse();
+    }
+
+    List<Rule> rules = bnfprocessor.getTargetRules(strrules);
+    List<Rule> localrules = bnfprocessor.getTargetRules(localrefs);
+    String requestKey = getRequestKey(rules, localrules);
+    Response content = responseCache.get(bnfprocessor, requestKey);
+    if (content == null) {
+      if (mode.equals("diagram")) {
+        content = new Response(bnfprocessor.getDiagram(rules, localrules, depth));
+      } else {
+        content = new Response(bnfprocessor.getGrammar(rules));
+      }
+      Set<String> ruleNames = new HashSet<String>();
+      for (Rule rule : rules) {
+        ruleNames.add(rule.getName());
+      }
+      responseCache.put(bnfprocessor, requestKey, ruleNames, content);
+    }
+    return content;
+  }
+}
+
 class BNFHandler implements HttpHandler {
 
   Logger logger = Logger.getLogger(BNFHandler.class.getName());
 
+  ResponseCache responseCache;
+
+  public BNFHandler(ResponseCache responseCache) {
+    this.responseCache = responseCache;
+  }
+
   @Override
   public void handle(HttpExchange httpExchange) throws IOException {
     if ("GET".equals(httpExchange.getRequestMethod())) {
@@ -81,7 +371,10 @@ class BNFHandler implements HttpHandler {
 
   public Map<String, String> parseParameters(HttpExchange exchange) {
     URI requestedUri = exchange.getRequestURI();
-    String query = requestedUri.getRawQuery();
+    return parseParameters(requestedUri.getRawQuery());
+  }
+
+  public static Map<String, String> parseParameters(String query) {
     Map<String, String> parameters = new HashMap<String, String>();
     if (query != null) {
       String pairs[] = query.split("[&]");
@@ -108,18 +401,6 @@ class BNFHandler implements HttpHandler {
     return parameters;
   }
 
-  public String cleanString(String input) {
-    // whitespaces
-    input = input.replaceAll("\\s*", "");
-    // leading ,
-    input = input.replaceAll("^,+", "");
-    // trailing ,
-    input = input.replaceAll(",+$", "");
-    // multiple ,
-    input = input.replaceAll(",+", ",");
-    return input;
-  }
-
   public void handleRequest(HttpExchange httpExchange) {
     int responseCode = HttpCodes.OK;
     try {
@@ -127,64 +408,261 @@ class BNFHandler implements HttpHandler {
       Map<String, String> params = parseParameters(httpExchange);
 
       BNFProcessor bnfprocessor = BNFProcessor.get(params.get("api"), params.get("version"));
-      String content = "";
 
       if (bnfprocessor == null) {
         // write the response
         throw new ServerException(HttpCodes.NOT_FOUND, "Unable to locate grammar file");
       }
 
+      BNFRequest request = new BNFRequest(params);
+      String etag = request.getETag(bnfprocessor);
+      if (Helper.isNotModified(httpExchange, etag)) {
+        // The tag determines the content: if the client has the gzip variant, the
+        // content is large enough to be compressed. Otherwise, the (usually cached)
+        // response tells whether it is.
+        boolean isGzip = Helper.acceptsGzip(httpExchange)
+            && (Helper.matchesIfNoneMatch(httpExchange, Helper.gzipETag(etag))
+                || request.render(bnfprocessor, responseCache).getGzipContent() != null);
+        Helper.writeNotModified(httpExchange, etag, isGzip);
+        return;
+      }
+
       // fetch the data
-      if (!params.containsKey("mode")) {
-        throw new BadRequest("no mode specified");
-      }
-      if (params.get("mode").equals("grammar") || params.get("mode").equals("diagram")) {
-        String strrules[] = null;
-        String localrefs[] = null;
-        if (params.containsKey("rules")) {
-          strrules = params.get("rules").split(",");
-        }
+      Response content = request.render(bnfprocessor, responseCache);
 
-        if (params.containsKey("local")) {
-          localrefs = cleanString(params.get("local")).split(",");
-        }
+      // write the response
+      Helper.writeHTTPResponse(httpExchange, responseCode, content, etag);
+    } catch (ServerException e) {
+      Helper.writeHTTPResponse(httpExchange, e.httpErrorCode, e.getMessage());
+    } catch (Exception e) {
+      logger.log(Level.SEVERE, "Exception occurred while rendering " + httpExchange.getRequestURI(), e);
+      Helper.writeHTTPResponse(httpExchange, HttpCodes.INTERNAL_ERROR, "Unable to render the response");
+    }
+  }
+}
 
-        int depth = 0;
-        if (params.containsKey("depth")) {
-          try {
-            depth = Integer.parseInt(params.get("depth"));
-          } catch (NumberFormatException nfe) {
-            throw new BadRequest("invalid depth:" + params.get("depth"));
-          }
-        }
+/**
+ * Renders many requests against the same api/version in one round trip.
+ *
+ * The body of the POST request holds one job per line, in the query string
+ * format of /ebnf (e.g. "mode=diagram&rules=select,select_start&depth=5").
+ * Jobs are rendered in parallel on the executor of the server, and their
+ * results are streamed back in the same order, as JSON lines:
+ *   {"job":0,"status":200,"etag":"...","content":"..."}
+ *   {"job":1,"status":400,"error":"depth should be > 0"}
+ * A batch has at most MAX_JOBS jobs.
+ */
+class BNFBatchHandler implements HttpHandler {
+  static final int MAX_JOBS = 1000;
+
+  Logger logger = Logger.getLogger(BNFBatchHandler.class.getName());
+
+  ResponseCache responseCache;
+  Executor executor;
+
+  public BNFBatchHandler(ResponseCache responseCache, Executor executor) {
+    this.responseCache = responseCache;
+    this.executor = executor;
+  }
 
-        if (depth == 0) {
-          throw new BadRequest("depth should be > 0");
-        }
+  /**
+   * A job, run by the executor or by the thread streaming the results if it
+   * gets to it first: requests waiting for their jobs can't use up the threads
+   * of the executor without the jobs ever running.
+   */
+  class Job implements Runnable {
+    final AtomicBoolean started = new AtomicBoolean();
+    final CompletableFuture<String> result = new CompletableFuture<String>();
+    final BNFProcessor bnfprocessor;
+    final int job;
+    final Map<String, String> params;
+
+    Job(BNFProcessor bnfprocessor, int job, Map<String, String> params) {
+      this.bnfprocessor = bnfprocessor;
+      this.job = job;
+      this.params = params;
+    }
+
+    @Override
+    public void run() {
+      if (!started.compareAndSet(false, true)) {
+        return;
+      }
+      try {
+        result.complete(renderJob(bnfprocessor, job, params));
+      } catch (Throwable t) {
+        result.completeExceptionally(t);
+      }
+    }
+  }
 
-        if (strrules == null || strrules.length == 0) {
-          throw new BadRequest("No rules specified");
+  @Override
+  public void handle(HttpExchange httpExchange) throws IOException {
+    if ("POST".equals(httpExchange.getRequestMethod())) {
+      handleRequest(httpExchange);
+    } else {
+      Helper.writeHTTPResponse(httpExchange, HttpCodes.BAD_REQUEST, "batch requests must use POST");
+    }
+  }
+
+  public void handleRequest(HttpExchange httpExchange) {
+    try {
+      Map<String, String> params = BNFHandler.parseParameters(httpExchange.getRequestURI().getRawQuery());
+      final BNFProcessor bnfprocessor = BNFProcessor.get(params.get("api"), params.get("version"));
+      if (bnfprocessor == null) {
+        throw new ServerException(HttpCodes.NOT_FOUND, "Unable to locate grammar file");
+      }
+
+      List<String> lines = new ArrayList<String>();
+      BufferedReader reader = new BufferedReader(
+          new InputStreamReader(httpExchange.getRequestBody(), StandardCharsets.UTF_8));
+      for (String line; (line = reader.readLine()) != null; ) {
+        if (line.trim().isEmpty()) {
+          continue;
         }
+        if (lines.size() == MAX_JOBS) {
+          throw new BadRequest("too many jobs, a batch has at most " + MAX_JOBS);
+        }
+        lines.add(line.trim());
+      }
 
-        List<Rule> rules = bnfprocessor.getTargetRules(strrules);
-        List<Rule> localrules = bnfprocessor.getTargetRules(localrefs);
-        if (params.get("mode").equals("diagram")) {
-          content = bnfprocessor.getDiagram(rules, localrules, depth);
-        } else {
-          content = bnfprocessor.getGrammar(rules);
+      List<Job> jobs = new ArrayList<Job>(lines.size());
+      for (String line : lines) {
+        Job job = new Job(bnfprocessor, jobs.size(), BNFHandler.parseParameters(line));
+        jobs.add(job);
+        try {
+          executor.execute(job);
+        } catch (RejectedExecutionException e) {
+          // run below
         }
-      } else if (params.get("mode").equals("reference")) {
-        content = bnfprocessor.getReferenceFile();
-      } else {
-        throw new BadRequest("invalid mode specified - " + params.get("mode"));
       }
 
-      // write the response
-      Helper.writeHTTPResponse(httpExchange, responseCode, content);
+      httpExchange.getResponseHeaders().set("Content-Type", "application/x-ndjson; charset=utf-8");
+      // 0 means chunked: results are written as soon as they are rendered, in job order
+      httpExchange.sendResponseHeaders(HttpCodes.OK, 0);
+      OutputStream outputStream = httpExchange.getResponseBody();
+      for (Job job : jobs) {
+        job.run();
+        outputStream.write(job.result.join().getBytes(StandardCharsets.UTF_8));
+        outputStream.flush();
+      }
+      outputStream.close();
     } catch (ServerException e) {
       Helper.writeHTTPResponse(httpExchange, e.httpErrorCode, e.getMessage());
     } catch (Exception e) {
       e.printStackTrace(System.out);
+    } finally {
+      // the client must not wait for the rest of a response that failed half-way
+      httpExchange.close();
+    }
+  }
+
+  String renderJob(BNFProcessor bnfprocessor, int job, Map<String, String> params) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\"job\":").append(job);
+    try {
+      BNFRequest request = new BNFRequest(params);
+      Response content = request.render(bnfprocessor, responseCache);
+      sb.append(",\"status\":").append(HttpCodes.OK);
+      sb.append(",\"etag\":").append(Helper.toJSONString(request.getETag(bnfprocessor)));
+      sb.append(",\"content\":").append(Helper.toJSONString(new String(content.getContent(), StandardCharsets.UTF_8)));
+    } catch (ServerException e) {
+      sb.append(",\"status\":").append(e.httpErrorCode);
+      sb.append(",\"error\":").append(Helper.toJSONString(e.getMessage()));
+    } catch (RuntimeException e) {
+      logger.severe("Exception occurred while rendering batch job " + job + ": " + e);
+      sb.append(",\"status\":").append(HttpCodes.INTERNAL_ERROR);
+      sb.append(",\"error\":").append(Helper.toJSONString(String.valueOf(e)));
+    }
+    sb.append("}\n");
+    return sb.toString();
+  }
+}
+
+/**
+ * Watches the grammar files of the loaded processors, and reloads them when
+ * they change (see BNFProcessor.reload()). Cached responses of the rules that
+ * changed are dropped, and a file that can't be loaded anymore keeps being
+ * served from its previous version.
+ */
+class GrammarReloader implements FileWatcher.Listener {
+  // delay without changes before reloading a grammar file
+  static final long DEBOUNCE_MILLIS = 500;
+
+  Logger logger = Logger.getLogger(GrammarReloader.class.getName());
+
+  FileWatcher watcher;
+  ResponseCache responseCache;
+
+  public GrammarReloader(ResponseCache responseCache) throws IOException {
+    this.responseCache = responseCache;
+    this.watcher = new FileWatcher(DEBOUNCE_MILLIS);
+  }
+
+  public void start() {
+    BNFProcessor.loadListener = new Consumer<BNFProcessor>() {
+      @Override
+      public void accept(BNFProcessor processor) {
+        watch(processor);
+      }
+    };
+    for (CompletableFuture<BNFProcessor> loader : BNFProcessor.processors.values()) {
+      BNFProcessor processor = loader.getNow(null);
+      if (processor != null) {
+        watch(processor);
+      }
+    }
+
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          watcher.run(GrammarReloader.this);
+        } catch (Exception e) {
+          logger.log(Level.SEVERE, "Grammar files are not watched anymore", e);
+        }
+      }
+    }, "grammar-reloader");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  void watch(BNFProcessor processor) {
+    try {
+      watcher.watchFile(toPath(processor));
+    } catch (IOException e) {
+      logger.warning("Unable to watch " + processor.bnffile + " for changes: " + e);
+    }
+  }
+
+  private static Path toPath(BNFProcessor processor) {
+    return Paths.get(processor.bnffile).toAbsolutePath().normalize();
+  }
+
+  @Override
+  public void changed(Set<Path> paths) {
+    for (CompletableFuture<BNFProcessor> loader : BNFProcessor.processors.values()) {
+      if (loader.isCompletedExceptionally()) {
+        continue;
+      }
+      BNFProcessor processor = loader.getNow(null);
+      if (processor != null && paths.contains(toPath(processor))) {
+        BNFProcessor reloaded = BNFProcessor.reload(processor);
+        if (reloaded != null) {
+          responseCache.refresh(reloaded);
+          logger.info("reloaded " + reloaded.getKey() + ": "
+                      + RuleDependencyGraph.getChangedRules(processor.getRuleHashes(), reloaded.getRuleHashes()).size()
+                      + " rule(s) changed");
+        }
+      }
+    }
+  }
+
+  public void stop() {
+    try {
+      watcher.close();
+    } catch (IOException e) {
+      // stopping anyway
     }
   }
 }
@@ -197,8 +675,16 @@ class Server {
   // TODO: make this configurable
   int port = 1314; /* port at which the server listens */
   String host = "localhost";
-  ThreadPoolExecutor threadPoolExecutor;
+  String executorMode = "fixed:10";
+  ExecutorService threadPoolExecutor;
   HttpServer server;
+  GrammarReloader grammarReloader;
+  // docs root whose grammar files are loaded at startup, see BNFProcessor.preload()
+  File preloadRoot;
+  boolean warmup = false;
+  // false until the preloading completes, see /health
+  volatile boolean ready = true;
+  ResponseCache responseCache = new ResponseCache(ResponseCache.DEFAULT_MAX_BYTES);
   Logger logger = Logger.getLogger(Server.class.getName());
 
   public Server(String[] args) {
@@ -226,7 +712,15 @@ class Server {
           String bnffile = args[i];
           File f = new File(bnffile);
           if (f.exists() && !f.isDirectory()) {
-            BNFProcessor.setDefault(new BNFProcessor(bnffile, "ysql", "preview"));
+            try {
+              BNFProcessor.setDefault(new BNFProcessor(bnffile, "ysql", "preview"));
+            } catch (IOException ioe) {
+              logger.severe("Unable to read from file: " + bnffile + ": " + ioe);
+              System.exit(1);
+            } catch (IllegalArgumentException iae) {
+              logger.severe(iae.getMessage());
+              System.exit(1);
+            }
           } else {
             logger.severe("Unable to locate file: " + bnffile);
             System.exit(1);
@@ -235,6 +729,42 @@ class Server {
         case "--debug":
           setDebugLog();
           break;
+        case "--preload":
+          i++;
+          preloadRoot = new File(args[i]);
+          if (!preloadRoot.isDirectory()) {
+            logger.severe("Unable to locate folder: " + args[i]);
+            System.exit(1);
+          }
+          // before the server starts, so that no request looks up grammar files elsewhere
+          BNFProcessor.docsRoot = preloadRoot;
+          break;
+        case "--warmup":
+          warmup = true;
+          break;
+        case "--executor":
+          i++;
+          executorMode = args[i];
+          break;
+        case "--gzip-min-size":
+          i++;
+          try {
+            Response.gzipMinSize = Integer.parseInt(args[i]);
+          } catch (NumberFormatException nfe) {
+            logger.severe("invalid gzip min size: " + args[i]);
+            System.exit(1);
+          }
+          break;
+        case "--cache-size":
+          i++;
+          try {
+            // in MB, 0 disables the response cache
+            responseCache = new ResponseCache(Long.parseLong(args[i]) * 1024 * 1024);
+          } catch (NumberFormatException nfe) {
+            logger.severe("invalid cache size: " + args[i]);
+            System.exit(1);
+          }
+          break;
         default:
           logger.severe("unsupported argument: " + args[i]);
           System.exit(1);
@@ -242,15 +772,74 @@ class Server {
     }
   }
 
+  /**
+   * Creates the executor running the request handlers, one of:
+   * - virtual: one virtual thread per request (JDK 21+, otherwise falls back
+   *   to a fixed pool sized for blocking I/O)
+   * - fixed:N: N platform threads
+   * - forkjoin: work-stealing pool with one thread per core
+   */
+  ExecutorService createExecutor(String mode) {
+    if (mode.equals("virtual")) {
+      try {
+        // looked up reflectively since we still target older JDKs
+        return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch (ReflectiveOperationException e) {
+        int threads = 8 * Runtime.getRuntime().availableProcessors();
+        logger.warning("Virtual threads are not supported by this JDK, using a fixed pool of " + threads + " threads");
+        return Executors.newFixedThreadPool(threads);
+      }
+    }
+    if (mode.equals("forkjoin")) {
+      return Executors.newWorkStealingPool();
+    }
+    if (mode.startsWith("fixed:")) {
+      try {
+        int threads = Integer.parseInt(mode.substring("fixed:".length()));
+        if (threads > 0) {
+          return Executors.newFixedThreadPool(threads);
+        }
+      } catch (NumberFormatException nfe) {
+        // reported below
+      }
+    }
+    logger.severe("unsupported executor: " + mode + " (expected virtual, fixed:N or forkjoin)");
+    System.exit(1);
+    return null;
+  }
+
   public void start() {
-    threadPoolExecutor = (ThreadPoolExecutor) Executors.newFixedThreadPool(10);
+    threadPoolExecutor = createExecutor(executorMode);
     try {
       server = HttpServer.create(new InetSocketAddress(host, port), 0);
     } catch (java.io.IOException e) {
       e.printStackTrace(System.out);
       return;
     }
-    server.createContext("/ebnf", new BNFHandler());
+    try {
+      grammarReloader = new GrammarReloader(responseCache);
+      grammarReloader.start();
+    } catch (IOException e) {
+      logger.warning("Grammar files won't be reloaded on changes: " + e);
+    }
+    server.createContext("/ebnf", new BNFHandler(responseCache));
+    server.createContext("/ebnf/batch", new BNFBatchHandler(responseCache, threadPoolExecutor));
+    server.createContext("/stats", new HttpHandler() {
+      @Override
+      public void handle(final HttpExchange httpExchange) throws IOException {
+        Helper.writeHTTPResponse(httpExchange, HttpCodes.OK, responseCache.getStats());
+      }
+    });
+    server.createContext("/health", new HttpHandler() {
+      @Override
+      public void handle(final HttpExchange httpExchange) throws IOException {
+        if (ready) {
+          Helper.writeHTTPResponse(httpExchange, HttpCodes.OK, "ready\n");
+        } else {
+          Helper.writeHTTPResponse(httpExchange, HttpCodes.SERVICE_UNAVAILABLE, "starting\n");
+        }
+      }
+    });
     server.createContext("/shutdown", new HttpHandler() {
       @Override
       public void handle(final HttpExchange httpExchange) throws IOException {
@@ -258,12 +847,45 @@ class Server {
         Helper.writeHTTPResponse(httpExchange, HttpCodes.OK, "Diagrams server will shutdown\n");
         server.stop(1);
         threadPoolExecutor.shutdownNow();
+        if (grammarReloader != null) {
+          grammarReloader.stop();
+        }
         logger.info("Diagrams server is shutdown.");
       }
     });
 
     server.setExecutor(threadPoolExecutor);
+    if (preloadRoot != null) {
+      ready = false;
+    }
     server.start();
-    logger.info("Diagrams Server started @ [" + host + ":" + port + "]");
+    logger.info("Diagrams Server started @ [" + host + ":" + port + "] using executor " + executorMode);
+    if (preloadRoot != null) {
+      preload();
+    }
+  }
+
+  /**
+   * Loads (and warms up) the grammar files of the docs root in the background,
+   * while the server already answers /health.
+   */
+  void preload() {
+    final long start = System.currentTimeMillis();
+    final ExecutorService preloadExecutor =
+        Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    BNFProcessor.preload(warmup, preloadExecutor).whenComplete(
+        new BiConsumer<List<BNFProcessor>, Throwable>() {
+          @Override
+          public void accept(List<BNFProcessor> processors, Throwable error) {
+            preloadExecutor.shutdown();
+            if (error != null) {
+              logger.log(Level.SEVERE, "Preloading failed", error);
+            } else {
+              logger.info("Preloaded " + processors.size() + " grammar(s)" + (warmup ? " and warmed up" : "")
+                          + " in " + (System.currentTimeMillis() - start) + " ms");
+            }
+            ready = true;
+          }
+        });
   }
 }
@@ -12,6 +12,16 @@ import net.nextencia.rrdiagram.grammar.model.Literal;
 
 import java.awt.Color;
 import java.awt.Font;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 
 
 /**
@@ -84,11 +94,80 @@ public class Utils {
   }
 
 
+  /**
+   * @return the SHA-256 digest of the bytes, as an hexadecimal string.
+   */
+  public static String sha256(byte[] bytes) {
+    try {
+      StringBuilder sb = new StringBuilder(64);
+      for(byte b: MessageDigest.getInstance("SHA-256").digest(bytes)) {
+        sb.append(String.format("%02x", b));
+      }
+      return sb.toString();
+    } catch(NoSuchAlgorithmException e) {
+      // Doesn't happen, SHA-256 is always available
+      throw new RuntimeException(e);
+    }
+  }
+
+  public static String sha256(String s) {
+    return sha256(s.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String buildHash;
+  private static boolean isBuildHashComputed;
+
+  /**
+   * @return the SHA-256 digest of the jar (or class folder) RRDiagram is run
+   * from, which changes with the code producing the outputs, or null if it
+   * can't be read.
+   */
+  public static synchronized String getBuildHash() {
+    if(!isBuildHashComputed) {
+      isBuildHashComputed = true;
+      try {
+        CodeSource codeSource = Utils.class.getProtectionDomain().getCodeSource();
+        if(codeSource != null && codeSource.getLocation() != null) {
+          ByteArrayOutputStream out = new ByteArrayOutputStream();
+          appendContent(new File(codeSource.getLocation().toURI()), "", out);
+          buildHash = sha256(out.toByteArray());
+        }
+      } catch(IOException | URISyntaxException | SecurityException | IllegalArgumentException e) {
+        buildHash = null;
+      }
+    }
+    return buildHash;
+  }
+
+  private static void appendContent(File file, String path, ByteArrayOutputStream out) throws IOException {
+    if(file.isDirectory()) {
+      File[] children = file.listFiles();
+      if(children == null) {
+        throw new IOException("Could not list " + file);
+      }
+      // sorted, so that the hash doesn't depend on the order of the listing
+      Arrays.sort(children);
+      for(File child: children) {
+        appendContent(child, path + "/" + child.getName(), out);
+      }
+    } else {
+      out.write(path.getBytes(StandardCharsets.UTF_8));
+      out.write(0);
+      out.write(Files.readAllBytes(file.toPath()));
+    }
+  }
+
   public static boolean emptySep(String sep) {
-    return sep.trim().isEmpty();
+    // Same as sep.trim().isEmpty(), without creating a string.
+    for (int i = 0; i < sep.length(); i++) {
+      if (sep.charAt(i) > ' ') {
+        return false;
+      }
+    }
+    return true;
   }
 
   // "Rule" considered as line-break in YBNF grammar.
-  public static String lineBreakRule = "\\";
+  public static final String lineBreakRule = "\\";
 
 }
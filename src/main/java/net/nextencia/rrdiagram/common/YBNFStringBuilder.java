@@ -4,7 +4,7 @@ import net.nextencia.rrdiagram.grammar.model.Choice;
 import net.nextencia.rrdiagram.grammar.model.Expression;
 import net.nextencia.rrdiagram.grammar.model.Literal;
 
-import java.util.Stack;
+import java.util.Arrays;
 import java.util.List;
 
 import static net.nextencia.rrdiagram.common.Utils.emptySep;
@@ -18,74 +18,134 @@ public class YBNFStringBuilder {
     DEFAULT
   }
 
+  // Spaces to indent lines with, shared by all builders.
+  private static final char[] SPACES = new char[HARD_LINE_BREAK + SOFT_LINE_BREAK];
+  static {
+    Arrays.fill(SPACES, ' ');
+  }
+
   private StringBuilder sb;
 
 
-  private Stack<String> indents;
-  private Stack<BlockType> blocks;
+  // Stacks of the indents (widths) and types of the blocks being appended.
+  private int[] indents;
+  private int indentCount;
+  private BlockType[] blocks;
+  private int blockCount;
 
   private int lastnewline;
 
 
-  private boolean size_estimate_dry_run = false;
+  // Measures the size of an expression on a single line rather than building its text.
+  private boolean measuring = false;
+  private int measuredSize;
+
+  // Expression preceding the one being appended in its sequence, if any.
+  private Expression previousExpression;
 
   public YBNFStringBuilder(String ruleName) {
-    sb = new StringBuilder();
+    this(ruleName, 16);
+  }
+
+  /**
+   * @param expectedSize the size of the text on a single line, to size the buffer.
+   */
+  public YBNFStringBuilder(String ruleName, int expectedSize) {
+    // Leave room for the line breaks and indents.
+    sb = new StringBuilder(ruleName.length() + 5 + expectedSize + expectedSize / 2);
     lastnewline = sb.length();
-    indents = new Stack<String>();
-    blocks = new Stack<BlockType>();
+    indents = new int[8];
+    blocks = new BlockType[8];
 
     sb.append(ruleName);
     sb.append(" ::= ");
     startIndent();
   }
 
-  public YBNFStringBuilder() {
-    sb = new StringBuilder();
-    lastnewline = sb.length();
-    indents = new Stack<String>();
-    blocks = new Stack<BlockType>();
+  private YBNFStringBuilder(Expression previousExpression) {
+    this.previousExpression = previousExpression;
+    measuring = true;
+  }
 
-    size_estimate_dry_run = true;
+  /**
+   * @return the size of the text of the expression on a single line, from the
+   * sizes of its subexpressions (see Expression.getYBNFSize()).
+   */
+  public static int measure(Expression expr, boolean isWrapped, Expression previousExpression) {
+    YBNFStringBuilder measurer = new YBNFStringBuilder(previousExpression);
+    expr.toYBNF(measurer, isWrapped);
+    return measurer.measuredSize;
   }
 
   private void endIndent() {
-    indents.pop();
+    indentCount--;
   }
 
   private void startIndent() {
-    indents.add(createIndent(currentLineLength()));
+    if (indentCount == indents.length) {
+      indents = Arrays.copyOf(indents, indentCount * 2);
+    }
+    indents[indentCount++] = currentLineLength();
+  }
+
+  private int currentIndent() {
+    return indents[indentCount - 1];
   }
 
   private int currentLineLength() {
     return sb.length() - lastnewline;
   }
 
-  private String createIndent(int size) {
-    return new String(new char[size]).replace("\0", " ");
+  private void appendIndent(int size) {
+    while (size > 0) {
+      int n = Math.min(size, SPACES.length);
+      sb.append(SPACES, 0, n);
+      size -= n;
+    }
   }
 
   public void append(String s) {
-    sb.append(s);
+    append(s, 0);
   }
 
-  public void append(Expression expr, boolean isWrapped) {
-    if (size_estimate_dry_run) {
-      int oldSize = sb.length();
-      expr.toYBNF(this, isWrapped);
-      expr.setYBNFSize(sb.length() - oldSize);
+  private void append(String s, int start) {
+    if (measuring) {
+      measuredSize += s.length() - start;
     } else {
-      beginBlock(expr);
-      expr.toYBNF(this, isWrapped);
-      endBlock();
+      sb.append(s, start, s.length());
     }
   }
 
-  private void beginBlock(Expression expr) {
-    int exprSize = expr.getYBNFSize();
+  public void append(Expression expr, boolean isWrapped) {
+    append(expr, isWrapped, null);
+  }
+
+  private void append(Expression expr, boolean isWrapped, Expression previousExpression) {
+    int exprSize = expr.getYBNFSize(isWrapped, previousExpression);
+    if (measuring) {
+      measuredSize += exprSize;
+      return;
+    }
+    Expression outerPreviousExpression = this.previousExpression;
+    this.previousExpression = previousExpression;
+    beginBlock(expr, exprSize);
+    expr.toYBNF(this, isWrapped);
+    endBlock();
+    this.previousExpression = outerPreviousExpression;
+  }
+
+  /**
+   * @return the expression preceding the one being appended in a sequence
+   * (see appendSequence()), or null.
+   */
+  public Expression getPreviousExpression() {
+    return previousExpression;
+  }
+
+  private void beginBlock(Expression expr, int exprSize) {
 
     boolean tooLong = currentLineLength() + exprSize > HARD_LINE_BREAK;
-    int standaloneSize = indents.peek().length() + exprSize;
+    int standaloneSize = currentIndent() + exprSize;
     boolean standaloneTooLong = standaloneSize > HARD_LINE_BREAK;
 
     BlockType blockType = BlockType.DEFAULT;
@@ -110,19 +170,33 @@ public class YBNFStringBuilder {
       }
     }
 
-    blocks.add(blockType);
+    if (blockCount == blocks.length) {
+      blocks = Arrays.copyOf(blocks, blockCount * 2);
+    }
+    blocks[blockCount++] = blockType;
     startIndent();
   }
 
   private void endBlock() {
-    blocks.pop();
+    blockCount--;
     endIndent();
   }
 
   private boolean inMultilineChoiceBlock() {
-    return !size_estimate_dry_run &&
-        blocks.size() > 0 &&
-        blocks.peek() == BlockType.MULTILINE_CHOICE;
+    return !measuring &&
+        blockCount > 0 &&
+        blocks[blockCount - 1] == BlockType.MULTILINE_CHOICE;
+  }
+
+  /**
+   * @return the index of the first character that is not a leading whitespace.
+   */
+  private static int getTrimmedStart(String s) {
+    int start = 0;
+    while (start < s.length() && Character.isWhitespace(s.charAt(start))) {
+      start++;
+    }
+    return start;
   }
 
   public void appendExprList(List<Expression> exprs,
@@ -130,13 +204,37 @@ public class YBNFStringBuilder {
                              String sep,
                              String end,
                              boolean isWrapped) {
+    appendExprList(exprs, start, sep, end, isWrapped, false);
+  }
+
+  /**
+   * Same as appendExprList(), for the expressions of a sequence: each one can
+   * get the one before it with getPreviousExpression().
+   */
+  public void appendSequence(List<Expression> exprs,
+                             String start,
+                             String sep,
+                             String end,
+                             boolean isWrapped) {
+    appendExprList(exprs, start, sep, end, isWrapped, true);
+  }
+
+  private void appendExprList(List<Expression> exprs,
+                              String start,
+                              String sep,
+                              String end,
+                              boolean isWrapped,
+                              boolean isSequence) {
     append(start);
 
     boolean multiline_choice = inMultilineChoiceBlock();
+    // The separator starting a new line is trimmed.
+    int trimmedSepStart = 0;
     if (multiline_choice) {
       // Replace the indent with the one after the start marker.
-      indents.pop();
+      endIndent();
       startIndent();
+      trimmedSepStart = getTrimmedStart(sep);
     }
 
     for (int i = 0; i < exprs.size(); i++) {
@@ -153,13 +251,13 @@ public class YBNFStringBuilder {
             ((Literal) exprs.get(i+1)).getText().equals("(");
       }
 
-      append(exprs.get(i), isElemWrapped);
+      append(exprs.get(i), isElemWrapped, isSequence && i > 0 ? exprs.get(i - 1) : null);
 
       if (i < exprs.size() - 1) {
         if (multiline_choice) {
           boolean appliedLineBreak = lineBreak();
           if (appliedLineBreak) {
-            append(sep.replaceAll("^\\s+", ""));
+            append(sep, trimmedSepStart);
           }
           else {
             append(sep);
@@ -191,14 +289,14 @@ public class YBNFStringBuilder {
 
       append(expr, isElemWrapped);
     }
-    sb.append(end);
+    append(end);
   }
 
   private boolean lineBreak() {
-    if (currentLineLength() >= 5 + indents.peek().length()) {
-      sb.append("\n");
+    if (currentLineLength() >= 5 + currentIndent()) {
+      sb.append('\n');
       lastnewline = sb.length();
-      sb.append(indents.peek());
+      appendIndent(currentIndent());
       return true;
     }
     return false;
@@ -9,9 +9,20 @@ package net.nextencia.rrdiagram.grammar.model;
 
 import java.io.IOException;
 import java.io.Reader;
-import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import net.nextencia.rrdiagram.grammar.model.ParseResult.Diagnostic;
+import net.nextencia.rrdiagram.grammar.model.ParseResult.Occurrence;
 
 /**
  * @author Christopher Deckers
@@ -34,12 +45,17 @@ public class BNFToGrammar {
 
   private static class Chunk {
     private ChunkType type;
-    public Chunk(ChunkType type) {
-      this(type, null);
+    // Offsets of the chunk in the text.
+    private int start;
+    private int end;
+    public Chunk(ChunkType type, int start, int end) {
+      this(type, null, start, end);
     }
-    public Chunk(ChunkType type, String text) {
+    public Chunk(ChunkType type, String text, int start, int end) {
       this.type = type;
       this.text = text;
+      this.start = start;
+      this.end = end;
     }
     public ChunkType getType() {
       return type;
@@ -66,15 +82,33 @@ public class BNFToGrammar {
       }
       chunkList.add(chunk);
     }
-    private void prune() {
+    private boolean isExpression() {
+      switch(type) {
+        case REPETITION_TOKEN:
+        case ALTERNATION:
+        case COMMENT:
+          return false;
+        default:
+          return true;
+      }
+    }
+    private void prune(ParseContext context) {
+      if(chunkList == null) {
+        // Rule is empty.
+        return;
+      }
       boolean hasAlternation = false;
       for(int i=chunkList.size()-1; i>=0; i--) {
         Chunk chunk = chunkList.get(i);
         switch(chunk.getType()) {
           case REPETITION_TOKEN: {
+            chunkList.remove(i);
+            Chunk previousChunk = i > 0? chunkList.get(i - 1): null;
+            if(previousChunk == null || !previousChunk.isExpression()) {
+              context.addError(chunk.start, chunk.end, "Expecting an expression before '" + chunk.text + "'");
+              break;
+            }
             if("*".equals(chunk.text)) {
-              chunkList.remove(i);
-              Chunk previousChunk = chunkList.get(i - 1);
               Integer multiplier = null;
               // Case of: 3 * expression
               if(previousChunk.getType() == ChunkType.RULE) {
@@ -85,41 +119,38 @@ public class BNFToGrammar {
               }
               if(multiplier != null) {
                 // The current one is removed, so next one is at index i.
-                Chunk nextChunk = chunkList.get(i);
+                Chunk nextChunk = i < chunkList.size()? chunkList.get(i): null;
+                if(nextChunk == null || !nextChunk.isExpression()) {
+                  context.addError(previousChunk.start, chunk.end, "Expecting an expression after '" + multiplier + " *'");
+                  break;
+                }
+                Chunk newChunk = new Chunk(ChunkType.REPETITION, previousChunk.start, nextChunk.end);
                 if(nextChunk.getType() == ChunkType.OPTION) {
-                  Chunk newChunk = new Chunk(ChunkType.REPETITION);
                   newChunk.setMinCount(0);
                   newChunk.setMaxCount(multiplier);
                   for(Chunk c: nextChunk.chunkList) {
                     newChunk.addChunk(c);
                   }
-                  chunkList.remove(i);
-                  chunkList.set(i - 1, newChunk);
                 } else {
-                  Chunk newChunk = new Chunk(ChunkType.REPETITION);
                   newChunk.setMinCount(multiplier);
                   newChunk.setMaxCount(multiplier);
                   newChunk.addChunk(nextChunk);
-                  chunkList.remove(i);
-                  chunkList.set(i - 1, newChunk);
                 }
+                chunkList.remove(i);
+                chunkList.set(i - 1, newChunk);
               } else {
-                Chunk newChunk = new Chunk(ChunkType.REPETITION);
+                Chunk newChunk = new Chunk(ChunkType.REPETITION, previousChunk.start, chunk.end);
                 newChunk.setMinCount(0);
                 newChunk.addChunk(previousChunk);
                 chunkList.set(i - 1, newChunk);
               }
             } else if("+".equals(chunk.text)) {
-              chunkList.remove(i);
-              Chunk newChunk = new Chunk(ChunkType.REPETITION);
+              Chunk newChunk = new Chunk(ChunkType.REPETITION, previousChunk.start, chunk.end);
               newChunk.setMinCount(1);
-              Chunk previousChunk = chunkList.get(i - 1);
               newChunk.addChunk(previousChunk);
               chunkList.set(i - 1, newChunk);
             } else if("?".equals(chunk.text)) {
-              chunkList.remove(i);
-              Chunk newChunk = new Chunk(ChunkType.OPTION);
-              Chunk previousChunk = chunkList.get(i - 1);
+              Chunk newChunk = new Chunk(ChunkType.OPTION, previousChunk.start, chunk.end);
               newChunk.addChunk(previousChunk);
               chunkList.set(i - 1, newChunk);
             }
@@ -136,7 +167,7 @@ public class BNFToGrammar {
           case GROUP: {
             // Group could be empty
             if(chunk.chunkList != null) {
-              chunk.prune();
+              chunk.prune(context);
               if(chunk.chunkList.size() == 1) {
                 chunkList.set(i, chunk.chunkList.get(0));
               }
@@ -145,7 +176,11 @@ public class BNFToGrammar {
           }
           case OPTION:
           case REPETITION: {
-            chunk.prune();
+            if(chunk.chunkList == null) {
+              context.addError(chunk.start, chunk.end, "Expecting an expression in '" + (chunk.getType() == ChunkType.OPTION? "[ ]": "{ }") + "'");
+              chunk.chunkList = new ArrayList<Chunk>();
+            }
+            chunk.prune(context);
             break;
           }
         }
@@ -161,12 +196,12 @@ public class BNFToGrammar {
             list.add(chunk);
           }
         }
-        Chunk choiceChunk = new Chunk(ChunkType.CHOICE);
+        Chunk choiceChunk = new Chunk(ChunkType.CHOICE, start, end);
         for(List<Chunk> subList: alternationSequenceList) {
           if(subList.size() == 1) {
             choiceChunk.addChunk(subList.get(0));
           } else {
-            Chunk groupChunk = new Chunk(ChunkType.GROUP);
+            Chunk groupChunk = subList.isEmpty()? new Chunk(ChunkType.GROUP, start, start): new Chunk(ChunkType.GROUP, subList.get(0).start, subList.get(subList.size() - 1).end);
             for(Chunk c: subList) {
               groupChunk.addChunk(c);
             }
@@ -177,95 +212,129 @@ public class BNFToGrammar {
         chunkList.add(choiceChunk);
       }
     }
-    private Expression getExpression() {
+    /**
+     * @return the expression of the chunk, whose occurrence is then the one of the context.
+     */
+    private Expression getExpression(ParseContext context) {
+      return context.interner.intern(createExpression(context));
+    }
+    private Expression createExpression(ParseContext context) {
       switch(type) {
         case GROUP: {
           if(chunkList == null) {
             // Group is empty.
+            context.occurrence = new Occurrence(start, end, Occurrence.NO_CHILDREN);
             return new Sequence();
           }
           if(chunkList.size() == 1) {
-            return chunkList.get(0).getExpression();
+            // A chunk made of a single chunk keeps the span of the inner one.
+            return chunkList.get(0).getExpression(context);
           }
-          List<Expression> expressionList = new ArrayList<Expression>();
-          for(Chunk chunk: chunkList) {
-            expressionList.add(chunk.getExpression());
+          Expression[] expressions = new Expression[chunkList.size()];
+          Occurrence[] occurrences = new Occurrence[expressions.length];
+          for(int i=0; i<expressions.length; i++) {
+            expressions[i] = chunkList.get(i).getExpression(context);
+            occurrences[i] = context.occurrence;
           }
-          return new Sequence(expressionList.toArray(new Expression[0]));
+          context.occurrence = new Occurrence(start, end, occurrences);
+          return new Sequence(expressions);
         }
         case CHOICE: {
           if(chunkList.size() == 1) {
-            return chunkList.get(0).getExpression();
+            return chunkList.get(0).getExpression(context);
           }
           List<Expression> expressionList = new ArrayList<Expression>();
+          List<Occurrence> occurrenceList = new ArrayList<Occurrence>();
           boolean hasLine = false;
           for(Chunk chunk: chunkList) {
-            Expression expression = chunk.getExpression();
+            Expression expression = chunk.getExpression(context);
+            Occurrence occurrence = context.occurrence;
             if(expression instanceof Repetition) {
               Repetition repetition = (Repetition)expression;
               if(repetition.getMinRepetitionCount() == 0) {
                 if(repetition.getMaxRepetitionCount() == null || repetition.getMaxRepetitionCount() != 1) {
-                  expression = new Repetition(repetition.getExpression(), 1, repetition.getMaxRepetitionCount());
+                  // Same place and subexpression as the repetition it replaces.
+                  expression = context.interner.intern(new Repetition(repetition.getExpression(), 1, repetition.getMaxRepetitionCount()));
                 } else {
                   expression = repetition.getExpression();
+                  occurrence = occurrence.children[0];
                 }
                 hasLine = true;
               }
             }
             if(expression instanceof Choice) {
-              for(Expression exp: ((Choice)expression).getExpressions()) {
-                expressionList.add(exp);
+              Expression[] expressions = ((Choice)expression).getExpressions();
+              for(int i=0; i<expressions.length; i++) {
+                expressionList.add(expressions[i]);
+                occurrenceList.add(occurrence.children[i]);
               }
             } else {
               expressionList.add(expression);
+              occurrenceList.add(occurrence);
             }
           }
           if(hasLine && (expressionList.isEmpty() || !isNoop(expressionList.get(expressionList.size() - 1)))) {
-            expressionList.add(new Sequence());
+            expressionList.add(context.interner.intern(new Sequence()));
+            occurrenceList.add(Occurrence.NONE);
           }
+          context.occurrence = new Occurrence(start, end, occurrenceList.toArray(new Occurrence[0]));
           return new Choice(expressionList.toArray(new Expression[0]));
         }
         case RULE: {
+          context.occurrence = new Occurrence(start, end, Occurrence.NO_CHILDREN);
           return new RuleReference(text);
         }
         case LITERAL: {
+          context.occurrence = new Occurrence(start, end, Occurrence.NO_CHILDREN);
           return new Literal(text);
         }
         case SPECIAL_SEQUENCE: {
+          context.occurrence = new Occurrence(start, end, Occurrence.NO_CHILDREN);
           return new SpecialSequence(text);
         }
         case OPTION: {
           if(chunkList.size() == 1) {
             Chunk subChunk = chunkList.get(0);
             if(subChunk.getType() == ChunkType.CHOICE) {
-              Chunk newChunk = new Chunk(ChunkType.CHOICE);
+              Chunk newChunk = new Chunk(ChunkType.CHOICE, start, end);
               for(Chunk cChunk: subChunk.chunkList) {
                 newChunk.addChunk(cChunk);
               }
-              newChunk.addChunk(new Chunk(ChunkType.GROUP));
-              return newChunk.getExpression();
+              newChunk.addChunk(new Chunk(ChunkType.GROUP, end, end));
+              return newChunk.getExpression(context);
             }
-            return new Repetition(subChunk.getExpression(), 0, 1);
-          }
-          List<Expression> expressionList = new ArrayList<Expression>();
-          for(Chunk chunk: chunkList) {
-            expressionList.add(chunk.getExpression());
+            Expression expression = subChunk.getExpression(context);
+            context.occurrence = new Occurrence(start, end, context.occurrence);
+            return new Repetition(expression, 0, 1);
           }
-          return new Repetition(new Sequence(expressionList.toArray(new Expression[0])), 0, 1);
+          return new Repetition(getSequence(context), 0, 1);
         }
         case REPETITION: {
           if(chunkList.size() == 1) {
-            return new Repetition(chunkList.get(0).getExpression(), minCount, maxCount);
+            Expression expression = chunkList.get(0).getExpression(context);
+            context.occurrence = new Occurrence(start, end, context.occurrence);
+            return new Repetition(expression, minCount, maxCount);
           }
-          List<Expression> expressionList = new ArrayList<Expression>();
-          for(Chunk chunk: chunkList) {
-            expressionList.add(chunk.getExpression());
-          }
-          return new Repetition(new Sequence(expressionList.toArray(new Expression[0])), minCount, maxCount);
+          return new Repetition(getSequence(context), minCount, maxCount);
         }
       }
       throw new IllegalStateException("Type should not be reachable: " + type);
     }
+    /**
+     * @return the sequence of the chunks of a repetition, whose occurrence is then
+     * the one of the context, as the occurrence of the repetition.
+     */
+    private Sequence getSequence(ParseContext context) {
+      Expression[] expressions = new Expression[chunkList.size()];
+      Occurrence[] occurrences = new Occurrence[expressions.length];
+      for(int i=0; i<expressions.length; i++) {
+        expressions[i] = chunkList.get(i).getExpression(context);
+        occurrences[i] = context.occurrence;
+      }
+      Sequence sequence = context.interner.intern(new Sequence(expressions));
+      context.occurrence = new Occurrence(start, end, new Occurrence(start, end, occurrences));
+      return sequence;
+    }
     @Override
     public String toString() {
       String s = String.valueOf(type);
@@ -276,28 +345,293 @@ public class BNFToGrammar {
     }
   }
 
+  /**
+   * Cursor over the whole text of a grammar, so that parsing does not go
+   * through a reader one character at a time.
+   */
+  private static class CharCursor {
+    private final char[] chars;
+    private final int end;
+    private int position;
+    public CharCursor(char[] chars, int start, int end) {
+      this.chars = chars;
+      this.position = start;
+      this.end = end;
+    }
+    public int read() {
+      return position < end? chars[position++]: -1;
+    }
+    public int getPosition() {
+      return position;
+    }
+    /**
+     * @return the text from the given position to the current one.
+     */
+    public String getText(int start) {
+      return new String(chars, start, position - start);
+    }
+  }
+
+  /**
+   * State of a parse: the rules read so far, the problems found in the text,
+   * and the span of each rule and expression.
+   */
+  private static class ParseContext {
+    private final char[] chars;
+    private final int length;
+    // shared by the contexts of a parse, so that all of its rules share equal expressions
+    private final ExpressionInterner interner;
+    // offset of the start of each line, only needed for diagnostics
+    private int[] lineStarts;
+    private final List<Rule> ruleList = new ArrayList<Rule>();
+    private final List<Diagnostic> diagnosticList = new ArrayList<Diagnostic>();
+    // The occurrence of each rule, see ParseResult.
+    private final List<Occurrence> ruleOccurrenceList = new ArrayList<Occurrence>();
+    // occurrence of the expression last returned by Chunk.getExpression()
+    private Occurrence occurrence;
+    private boolean isEndOfTextReported;
+    public ParseContext(char[] chars, int length, ExpressionInterner interner) {
+      this.chars = chars;
+      this.length = length;
+      this.interner = interner;
+    }
+    /**
+     * @param expressionOccurrence where the expression of the rule was read, or
+     * null if the rule is taken unchanged from a previous grammar.
+     */
+    public void addRule(Rule rule, int start, int end, Occurrence expressionOccurrence) {
+      ruleList.add(rule);
+      ruleOccurrenceList.add(expressionOccurrence == null? null: new Occurrence(start, end, expressionOccurrence));
+    }
+    public void addError(int start, int end, String message) {
+      diagnosticList.add(new Diagnostic(Diagnostic.Severity.ERROR, message, createSpan(start, end)));
+    }
+    public void addWarning(int start, int end, String message) {
+      diagnosticList.add(new Diagnostic(Diagnostic.Severity.WARNING, message, createSpan(start, end)));
+    }
+    private SourceSpan createSpan(int start, int end) {
+      if(lineStarts == null) {
+        lineStarts = ParseResult.getLineStarts(chars, length);
+      }
+      return ParseResult.createSpan(lineStarts, start, end);
+    }
+    /**
+     * Adds what was read by the context of the text that follows.
+     */
+    public void addAll(ParseContext context) {
+      ruleList.addAll(context.ruleList);
+      ruleOccurrenceList.addAll(context.ruleOccurrenceList);
+      diagnosticList.addAll(context.diagnosticList);
+    }
+    public ParseResult toParseResult() {
+      // Expressions are pruned from the end, put diagnostics back in the order of the text.
+      Collections.sort(diagnosticList, new Comparator<Diagnostic>() {
+        @Override
+        public int compare(Diagnostic d1, Diagnostic d2) {
+          return Integer.compare(d1.getSpan().getStart(), d2.getSpan().getStart());
+        }
+      });
+      return new ParseResult(new Grammar(ruleList.toArray(new Rule[0])), diagnosticList, chars, length, ruleOccurrenceList.toArray(new Occurrence[0]));
+    }
+  }
+
+  private static ExpressionInterner createInterner(int length) {
+    // About one distinct expression every 35 chars in the YSQL grammar.
+    return new ExpressionInterner(Math.max(16, length / 32));
+  }
+
   private static boolean isNoop(Expression expression) {
-    return expression instanceof Sequence && ((Sequence)expression).getExpressions().length == 0;
+    return expression instanceof Sequence && ((Sequence)expression).getExpressionCount() == 0;
+  }
+
+  private ForkJoinPool forkJoinPool;
+
+  /**
+   * Sets the pool used to parse rules in parallel, or null (the default) to parse
+   * them sequentially. The rules keep the order of the input in both cases.
+   */
+  public void setForkJoinPool(ForkJoinPool forkJoinPool) {
+    this.forkJoinPool = forkJoinPool;
   }
 
+  public ForkJoinPool getForkJoinPool() {
+    return forkJoinPool;
+  }
+
+  /**
+   * @throws IllegalStateException if the text has errors.
+   */
   public Grammar convert(String string) {
-    try {
-      return convert(new StringReader(string));
-    } catch (IOException e) {
-      // Doesn't happen
-      throw new RuntimeException(e);
-    }
+    return getGrammar(parse(string));
   }
 
+  /**
+   * @throws IllegalStateException if the text has errors.
+   */
   public Grammar convert(Reader reader) throws IOException {
+    return getGrammar(parse(reader));
+  }
+
+  /**
+   * Parses a new version of a grammar, see parse(String, Grammar, String).
+   * @throws IllegalStateException if the text has errors.
+   */
+  public Grammar convert(String text, Grammar previousGrammar, String previousText) {
+    return getGrammar(parse(text, previousGrammar, previousText));
+  }
+
+  private static Grammar getGrammar(ParseResult result) {
+    for(Diagnostic diagnostic: result.getDiagnostics()) {
+      if(diagnostic.getSeverity() == Diagnostic.Severity.ERROR) {
+        throw new IllegalStateException(diagnostic.toString());
+      }
+    }
+    return result.getGrammar();
+  }
+
+  /**
+   * Parses the text without stopping at the first error.
+   */
+  public ParseResult parse(String string) {
+    return parse(string.toCharArray(), string.length());
+  }
+
+  /**
+   * Parses the text without stopping at the first error.
+   */
+  public ParseResult parse(Reader reader) throws IOException {
+    // Read in large blocks, decoding is much faster than char by char.
+    char[] chars = new char[8192];
+    int length = 0;
+    for(int n; (n=reader.read(chars, length, chars.length - length)) != -1; ) {
+      length += n;
+      if(length == chars.length) {
+        chars = Arrays.copyOf(chars, chars.length * 2);
+      }
+    }
+    return parse(chars, length);
+  }
+
+  private ParseResult parse(final char[] chars, int length) {
+    final ExpressionInterner interner = createInterner(length);
+    if(forkJoinPool == null) {
+      ParseContext context = new ParseContext(chars, length, interner);
+      loadRules(new CharCursor(chars, 0, length), context);
+      return context.toParseResult();
+    }
+    // Rules are independent: split the text between rules, in a few batches per thread.
+    List<Integer> ruleEnds = findRuleEnds(new CharCursor(chars, 0, length));
+    int batchSize = Math.max(1, ruleEnds.size() / (forkJoinPool.getParallelism() * 4));
+    List<ForkJoinTask<ParseContext>> taskList = new ArrayList<ForkJoinTask<ParseContext>>();
+    int start = 0;
+    for(int i=0; i<=ruleEnds.size(); i+=batchSize) {
+      final int batchStart = start;
+      // The last batch also takes the text after the last rule.
+      final int batchEnd = i + batchSize < ruleEnds.size()? ruleEnds.get(i + batchSize - 1): length;
+      taskList.add(forkJoinPool.submit(new Callable<ParseContext>() {
+        @Override
+        public ParseContext call() {
+          ParseContext context = new ParseContext(chars, length, interner);
+          loadRules(new CharCursor(chars, batchStart, batchEnd), context);
+          return context;
+        }
+      }));
+      start = batchEnd;
+      if(batchEnd == length) {
+        break;
+      }
+    }
+    ParseContext context = new ParseContext(chars, length, interner);
+    for(ForkJoinTask<ParseContext> task: taskList) {
+      context.addAll(task.join());
+    }
+    return context.toParseResult();
+  }
+
+  /**
+   * Parses a new version of a grammar, only parsing again the rules whose text
+   * changed: the other rules are taken from the previous grammar, as the same
+   * objects, so that what is attached to them (caches, hashes) stays valid.
+   * Only the rules parsed again have the spans of their expressions.
+   * @param previousGrammar the grammar parsed from previousText.
+   */
+  public ParseResult parse(String text, Grammar previousGrammar, String previousText) {
+    char[] previousChars = previousText.toCharArray();
+    List<Integer> previousRuleEnds = findRuleEnds(new CharCursor(previousChars, 0, previousChars.length));
+    Rule[] previousRules = previousGrammar.getRules();
+    if(previousRuleEnds.size() != previousRules.length) {
+      // Not the text of that grammar.
+      return parse(text);
+    }
+    // Text of a rule (including the comments before it) -> previous rules with that text.
+    Map<String, List<Rule>> textToRulesMap = new HashMap<String, List<Rule>>();
+    int start = 0;
+    for(int i=0; i<previousRules.length; i++) {
+      String ruleText = new String(previousChars, start, previousRuleEnds.get(i) - start);
+      List<Rule> ruleList = textToRulesMap.get(ruleText);
+      if(ruleList == null) {
+        ruleList = new LinkedList<Rule>();
+        textToRulesMap.put(ruleText, ruleList);
+      }
+      ruleList.add(previousRules[i]);
+      start = previousRuleEnds.get(i);
+    }
+
+    char[] chars = text.toCharArray();
+    List<Integer> ruleEnds = findRuleEnds(new CharCursor(chars, 0, chars.length));
+    ExpressionInterner interner = createInterner(chars.length);
+    ParseContext context = new ParseContext(chars, chars.length, interner);
+    boolean isInternerFilled = false;
+    start = 0;
+    for(int i=0; i<=ruleEnds.size(); i++) {
+      // The text after the last rule has no rule, unless it is malformed.
+      int end = i < ruleEnds.size()? ruleEnds.get(i): chars.length;
+      List<Rule> previousRuleList = i < ruleEnds.size()? textToRulesMap.get(new String(chars, start, end - start)): null;
+      if(previousRuleList != null && !previousRuleList.isEmpty()) {
+        context.addRule(previousRuleList.remove(0), findRuleStart(chars, start, end), end, null);
+      } else {
+        if(!isInternerFilled) {
+          // The rules parsed again share the expressions of the previous ones.
+          for(Rule rule: previousRules) {
+            interner.addAll(rule.getExpression());
+          }
+          isInternerFilled = true;
+        }
+        loadRules(new CharCursor(chars, start, end), context);
+      }
+      start = end;
+    }
+    return context.toParseResult();
+  }
+
+  /**
+   * @return the position of the name of the rule, after the comments preceding it.
+   */
+  private static int findRuleStart(char[] chars, int start, int end) {
+    CharCursor cursor = new CharCursor(chars, start, end);
+    for(int x; (x=cursor.read()) != -1; ) {
+      if(x == '(') {
+        skipComment(cursor);
+      } else if(!Character.isWhitespace((char)x)) {
+        return cursor.getPosition() - 1;
+      }
+    }
+    return start;
+  }
+
+  private static void loadRules(CharCursor cursor, ParseContext context) {
     StringBuilder sb = new StringBuilder();
-    List<Rule> ruleList = new ArrayList<Rule>();
-    for(int x; (x=reader.read()) != -1; ) {
+    int nameStart = cursor.getPosition();
+    for(int x; (x=cursor.read()) != -1; ) {
       char c = (char)x;
       switch(c) {
         case '=': {
-          Chunk chunk = new Chunk(ChunkType.GROUP);
-          String expressionText = loadExpression(chunk, reader, ';');
+          int start = cursor.getPosition();
+          if(sb.length() == 0) {
+            nameStart = start - 1;
+          }
+          Chunk chunk = new Chunk(ChunkType.GROUP, start, start);
+          String expressionText = loadExpression(chunk, cursor, ';', context);
           if(expressionText.endsWith(";")) {
             expressionText = expressionText.substring(0, expressionText.length() - 1);
           }
@@ -310,58 +644,147 @@ public class BNFToGrammar {
             }
           }
           ruleName = ruleName.trim();
-          Rule rule = createRule(ruleName, chunk, expressionText);
-          ruleList.add(rule);
+          if(ruleName.length() == 0) {
+            context.addWarning(nameStart, start, "Expecting a rule name before '='");
+          }
+          Rule rule = createRule(ruleName, chunk, expressionText, context);
+          context.addRule(rule, nameStart, cursor.getPosition(), context.occurrence);
           break;
         }
         // Consider that '(' in rule name is start of a comment.
         case '(': {
-          if(reader.read() != '*') {
-            throw new IllegalStateException("Expecting start of a comment after '(' but could not find '*'!");
-          }
-          char lastChar = 0;
-          for(int x2; (x2=reader.read()) != -1; ) {
-            char c2 = (char)x2;
-            if(c2 == ')' && lastChar == '*') {
-              break;
-            }
-            lastChar = c2;
+          int start = cursor.getPosition() - 1;
+          String error = skipComment(cursor);
+          if(error != null) {
+            context.addError(start, cursor.getPosition(), error);
           }
           break;
         }
         default: {
           if(!Character.isWhitespace(c) || sb.length() > 0) {
+            if(sb.length() == 0) {
+              nameStart = cursor.getPosition() - 1;
+            }
             sb.append(c);
           }
           break;
         }
       }
     }
-    return new Grammar(ruleList.toArray(new Rule[0]));
+    if(sb.length() > 0) {
+      context.addWarning(nameStart, cursor.getPosition(), "Expecting '=' after \"" + sb.toString().trim() + "\", the text is ignored");
+    }
+  }
+
+  /**
+   * @return the error if the comment is malformed, or null.
+   */
+  private static String skipComment(CharCursor cursor) {
+    if(cursor.read() != '*') {
+      return "Expecting start of a comment after '(' but could not find '*'!";
+    }
+    char lastChar = 0;
+    for(int x; (x=cursor.read()) != -1; ) {
+      char c = (char)x;
+      if(c == ')' && lastChar == '*') {
+        return null;
+      }
+      lastChar = c;
+    }
+    return "Expecting '*)' at the end of the comment";
+  }
+
+  /**
+   * Reads the text like loadRules() does, but only to find where rules end: a
+   * ';' can also be part of a comment, a literal or a special sequence.
+   * @return the positions following the end of each rule.
+   */
+  private static List<Integer> findRuleEnds(CharCursor cursor) {
+    List<Integer> ruleEnds = new ArrayList<Integer>();
+    for(int x; (x=cursor.read()) != -1; ) {
+      switch((char)x) {
+        case '=': {
+          skipExpression(cursor, ';', false, true);
+          ruleEnds.add(cursor.getPosition());
+          break;
+        }
+        case '(': {
+          skipComment(cursor);
+          break;
+        }
+      }
+    }
+    return ruleEnds;
   }
 
-  private static Rule createRule(String name, Chunk chunk, String originalExpressionText) {
-    chunk.prune();
-    Expression expression = chunk.getExpression();
+  /**
+   * Skips an expression the way loadExpression() reads it, without building any chunk.
+   */
+  private static void skipExpression(CharCursor cursor, char stopChar, boolean isLiteral, boolean isGroup) {
+    char lastChar = 0;
+    boolean isFirst = true;
+    boolean isInSpecialGroup = false;
+    char specialGroupChar = 0;
+    for(int x; (x=cursor.read()) != -1; ) {
+      char c = (char)x;
+      if(isLiteral) {
+        if(c == stopChar) {
+          return;
+        }
+        continue;
+      }
+      if(isFirst && isGroup && (c == '*' || c == '?')) {
+        isInSpecialGroup = true;
+        specialGroupChar = c;
+      }
+      isFirst = false;
+      if(isInSpecialGroup) {
+        if(c == ')' && lastChar == specialGroupChar) {
+          return;
+        }
+      } else {
+        if(c == stopChar) {
+          return;
+        }
+        switch(c) {
+          case '\"': skipExpression(cursor, '\"', true, false); break;
+          case '\'': skipExpression(cursor, '\'', true, false); break;
+          case '(': skipExpression(cursor, ')', false, true); break;
+          case '[': skipExpression(cursor, ']', false, false); break;
+          case '{': skipExpression(cursor, '}', false, false); break;
+        }
+      }
+      lastChar = c;
+    }
+  }
+
+  private static Rule createRule(String name, Chunk chunk, String originalExpressionText, ParseContext context) {
+    chunk.prune(context);
+    Expression expression = chunk.getExpression(context);
     return new Rule(name, expression, originalExpressionText);
   }
 
-  private static String loadExpression(Chunk parentChunk, Reader reader, char stopChar) throws IOException {
-    StringBuilder expressionTextSB = new StringBuilder();
+  /**
+   * @return the text of the expression, from the current position to the stop char (included).
+   */
+  private static String loadExpression(Chunk parentChunk, CharCursor cursor, char stopChar, ParseContext context) {
+    int start = cursor.getPosition();
+    // start of the rule name being read
+    int nameStart = start;
     char lastChar = 0;
     StringBuilder sb = new StringBuilder();
     boolean isFirst = true;
     boolean isInSpecialGroup = false;
     char specialGroupChar = 0;
     boolean isLiteral = parentChunk.getType() == ChunkType.LITERAL;
-    for(int x; (x=reader.read()) != -1; ) {
+    for(int x; (x=cursor.read()) != -1; ) {
       char c = (char)x;
-      expressionTextSB.append(c);
       if(isLiteral) {
         if(c == stopChar) {
           String s = sb.toString();
           parentChunk.setText(s);
-          return expressionTextSB.toString();
+          parentChunk.end = cursor.getPosition();
+          return cursor.getText(start);
         }
         sb.append(c);
       } else {
@@ -388,18 +811,17 @@ public class BNFToGrammar {
             String comment = sb.toString();
             comment = comment.substring(1, comment.length() - 1).trim();
             parentChunk.setText(comment);
-            return expressionTextSB.toString();
+            parentChunk.end = cursor.getPosition();
+            return cursor.getText(start);
           }
           if(sb.length() > 0 || !Character.isWhitespace(c)) {
             sb.append(c);
           }
         } else {
           if(c == stopChar) {
-            String content = sb.toString().trim();
-            if(content.length() > 0) {
-              parentChunk.addChunk(new Chunk(ChunkType.RULE, content));
-            }
-            return expressionTextSB.toString();
+            addRuleChunk(parentChunk, sb, nameStart, cursor.getPosition() - 1);
+            parentChunk.end = cursor.getPosition();
+            return cursor.getText(start);
           }
           switch(c) {
             case ',':
@@ -407,97 +829,63 @@ public class BNFToGrammar {
             case '\n':
             case '\r':
             case '\t': {
-              String content = sb.toString().trim();
-              if(content.length() > 0) {
-                parentChunk.addChunk(new Chunk(ChunkType.RULE, content));
-              }
-              sb.delete(0, sb.length());
+              addRuleChunk(parentChunk, sb, nameStart, cursor.getPosition() - 1);
               //            parentChunk.addChunk(new Chunk(ChunkType.CONCATENATION));
               break;
             }
             case '|': {
-              String content = sb.toString().trim();
-              if(content.length() > 0) {
-                parentChunk.addChunk(new Chunk(ChunkType.RULE, content));
-              }
-              sb.delete(0, sb.length());
-              parentChunk.addChunk(new Chunk(ChunkType.ALTERNATION));
+              addRuleChunk(parentChunk, sb, nameStart, cursor.getPosition() - 1);
+              parentChunk.addChunk(new Chunk(ChunkType.ALTERNATION, cursor.getPosition() - 1, cursor.getPosition()));
               break;
             }
             case '*':
             case '+':
             case '?': {
-              String content = sb.toString().trim();
-              if(content.length() > 0) {
-                parentChunk.addChunk(new Chunk(ChunkType.RULE, content));
-              }
-              sb.delete(0, sb.length());
-              parentChunk.addChunk(new Chunk(ChunkType.REPETITION_TOKEN, String.valueOf(c)));
+              addRuleChunk(parentChunk, sb, nameStart, cursor.getPosition() - 1);
+              parentChunk.addChunk(new Chunk(ChunkType.REPETITION_TOKEN, String.valueOf(c), cursor.getPosition() - 1, cursor.getPosition()));
               break;
             }
             case '\"': {
-              String content = sb.toString().trim();
-              if(content.length() > 0) {
-                parentChunk.addChunk(new Chunk(ChunkType.RULE, content));
-              }
-              sb.delete(0, sb.length());
-              Chunk literalChunk = new Chunk(ChunkType.LITERAL);
-              String subExpressionText = loadExpression(literalChunk, reader, '\"');
-              expressionTextSB.append(subExpressionText);
+              addRuleChunk(parentChunk, sb, nameStart, cursor.getPosition() - 1);
+              Chunk literalChunk = new Chunk(ChunkType.LITERAL, cursor.getPosition() - 1, cursor.getPosition());
+              loadExpression(literalChunk, cursor, '\"', context);
               parentChunk.addChunk(literalChunk);
               break;
             }
             case '\'': {
-              String content = sb.toString().trim();
-              if(content.length() > 0) {
-                parentChunk.addChunk(new Chunk(ChunkType.RULE, content));
-              }
-              sb.delete(0, sb.length());
-              Chunk literalChunk = new Chunk(ChunkType.LITERAL);
-              String subExpressionText = loadExpression(literalChunk, reader, '\'');
-              expressionTextSB.append(subExpressionText);
+              addRuleChunk(parentChunk, sb, nameStart, cursor.getPosition() - 1);
+              Chunk literalChunk = new Chunk(ChunkType.LITERAL, cursor.getPosition() - 1, cursor.getPosition());
+              loadExpression(literalChunk, cursor, '\'', context);
               parentChunk.addChunk(literalChunk);
               break;
             }
             case '(': {
-              String content = sb.toString().trim();
-              if(content.length() > 0) {
-                parentChunk.addChunk(new Chunk(ChunkType.RULE, content));
-              }
-              sb.delete(0, sb.length());
-              Chunk groupChunk = new Chunk(ChunkType.GROUP);
-              String subExpressionText = loadExpression(groupChunk, reader, ')');
-              expressionTextSB.append(subExpressionText);
+              addRuleChunk(parentChunk, sb, nameStart, cursor.getPosition() - 1);
+              Chunk groupChunk = new Chunk(ChunkType.GROUP, cursor.getPosition() - 1, cursor.getPosition());
+              loadExpression(groupChunk, cursor, ')', context);
               parentChunk.addChunk(groupChunk);
               break;
             }
             case '[': {
-              String content = sb.toString().trim();
-              if(content.length() > 0) {
-                parentChunk.addChunk(new Chunk(ChunkType.RULE, content));
-              }
-              sb.delete(0, sb.length());
-              Chunk optionChunk = new Chunk(ChunkType.OPTION);
-              String subExpressionText = loadExpression(optionChunk, reader, ']');
-              expressionTextSB.append(subExpressionText);
+              addRuleChunk(parentChunk, sb, nameStart, cursor.getPosition() - 1);
+              Chunk optionChunk = new Chunk(ChunkType.OPTION, cursor.getPosition() - 1, cursor.getPosition());
+              loadExpression(optionChunk, cursor, ']', context);
               parentChunk.addChunk(optionChunk);
               break;
             }
             case '{': {
-              String content = sb.toString().trim();
-              if(content.length() > 0) {
-                parentChunk.addChunk(new Chunk(ChunkType.RULE, content));
-              }
-              sb.delete(0, sb.length());
-              Chunk repetitionChunk = new Chunk(ChunkType.REPETITION);
+              addRuleChunk(parentChunk, sb, nameStart, cursor.getPosition() - 1);
+              Chunk repetitionChunk = new Chunk(ChunkType.REPETITION, cursor.getPosition() - 1, cursor.getPosition());
               repetitionChunk.setMinCount(0);
-              String subExpressionText = loadExpression(repetitionChunk, reader, '}');
-              expressionTextSB.append(subExpressionText);
+              loadExpression(repetitionChunk, cursor, '}', context);
               parentChunk.addChunk(repetitionChunk);
               break;
             }
             default: {
               if(sb.length() > 0 || !Character.isWhitespace(c)) {
+                if(sb.length() == 0) {
+                  nameStart = cursor.getPosition() - 1;
+                }
                 sb.append(c);
               }
               break;
@@ -507,7 +895,26 @@ public class BNFToGrammar {
         lastChar = c;
       }
     }
-    return expressionTextSB.toString();
+    parentChunk.end = cursor.getPosition();
+    // Only the innermost expression reports the end of the text, the enclosing ones end there too.
+    if(!context.isEndOfTextReported) {
+      context.isEndOfTextReported = true;
+      if(stopChar == ';') {
+        context.addWarning(parentChunk.start, parentChunk.end, "Expecting ';' at the end of the rule");
+      } else {
+        String expected = isInSpecialGroup? specialGroupChar + ")": String.valueOf(stopChar);
+        context.addError(parentChunk.start, parentChunk.end, "Expecting '" + expected + "' before the end of the text");
+      }
+    }
+    return cursor.getText(start);
+  }
+
+  private static void addRuleChunk(Chunk parentChunk, StringBuilder sb, int start, int end) {
+    String content = sb.toString().trim();
+    if(content.length() > 0) {
+      parentChunk.addChunk(new Chunk(ChunkType.RULE, content, start, end));
+    }
+    sb.delete(0, sb.length());
   }
 
 }
@@ -23,14 +23,16 @@ import net.nextencia.rrdiagram.grammar.rrdiagram.RRElement;
  */
 public class Choice extends Expression {
 
-  private Expression[] expressions;
+  private final Expression[] expressions;
+  private final int hashCode;
 
   public Choice(Expression... expressions) {
-    this.expressions = expressions;
+    this.expressions = expressions.clone();
+    this.hashCode = Choice.class.getName().hashCode() * 31 + Arrays.hashCode(this.expressions);
   }
 
   public Expression[] getExpressions() {
-    return expressions;
+    return expressions.clone();
   }
 
   @Override
@@ -47,7 +49,7 @@ public class Choice extends Expression {
     List<Expression> expressionList = new ArrayList<Expression>();
     boolean hasNoop = false;
     for(Expression expression: expressions) {
-      if(expression instanceof Sequence && ((Sequence)expression).getExpressions().length == 0) {
+      if(expression instanceof Sequence && ((Sequence)expression).getExpressionCount() == 0) {
         hasNoop = true;
       } else {
         expressionList.add(expression);
@@ -91,10 +93,10 @@ public class Choice extends Expression {
 
   @Override
   public void toYBNF(YBNFStringBuilder sb, boolean isWrapped) {
-    List<Expression> expressionList = new ArrayList<Expression>();
+    List<Expression> expressionList = new ArrayList<Expression>(expressions.length);
     boolean hasNoop = false;
     for(Expression expression: expressions) {
-      if(expression instanceof Sequence && ((Sequence)expression).getExpressions().length == 0) {
+      if(expression instanceof Sequence && ((Sequence)expression).getExpressionCount() == 0) {
         hasNoop = true;
       } else {
         expressionList.add(expression);
@@ -126,10 +128,18 @@ public class Choice extends Expression {
 
   @Override
   public boolean equals(Object o) {
-    if(!(o instanceof Choice)) {
+    if(o == this) {
+      return true;
+    }
+    if(!(o instanceof Choice) || hashCode != o.hashCode()) {
       return false;
     }
     return Arrays.equals(expressions, ((Choice)o).expressions);
   }
 
+  @Override
+  public int hashCode() {
+    return hashCode;
+  }
+
 }
@@ -17,8 +17,6 @@ import java.util.Set;
  */
 public abstract class Expression {
 
-  private int YBNFSize = 0;
-
   protected abstract RRElement toRRElement(GrammarToRRDiagram grammarToRRDiagram);
 
   protected abstract void toBNF(GrammarToBNF grammarToBNF, StringBuilder sb, boolean isNested);
@@ -27,14 +25,40 @@ public abstract class Expression {
 
   public abstract void toYBNF(YBNFStringBuilder sb, boolean isWrapped);
 
-  public int getYBNFSize() {
-    return YBNFSize;
-  }
+  // Sizes of the YBNF text on a single line, not wrapped and wrapped, computed
+  // when first needed. Threads racing to compute them get the same values.
+  private int ybnfSize = -1;
+  private int wrappedYBNFSize = -1;
 
-  public void setYBNFSize(int size) {
-    YBNFSize = size;
+  /**
+   * @return the size of the YBNF text of the expression on a single line, which
+   * decides where the text of the rule is broken into lines.
+   * @param previousExpression the expression before this one in its sequence, or null.
+   */
+  public int getYBNFSize(boolean isWrapped, Expression previousExpression) {
+    // Only repetitions depend on the previous expression.
+    int size = isWrapped? wrappedYBNFSize: ybnfSize;
+    if (size == -1) {
+      size = YBNFStringBuilder.measure(this, isWrapped, previousExpression);
+      if (isWrapped) {
+        wrappedYBNFSize = size;
+      } else {
+        ybnfSize = size;
+      }
+    }
+    return size;
   }
 
+  /**
+   * Expressions are immutable and compared by structure, so equal expressions
+   * can be shared (see ExpressionInterner). Subclasses compute their hash once.
+   */
+  @Override
+  public abstract boolean equals(Object o);
+
+  @Override
+  public abstract int hashCode();
+
   @Override
   public String toString() {
     StringBuilder sb = new StringBuilder();
@@ -0,0 +1,64 @@
+// Copyright (c) YugabyteDB, Inc.
+
+package net.nextencia.rrdiagram.grammar.model;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hash-consing of expressions: returns a single instance for equal expressions,
+ * so that a grammar holds each distinct subtree once (the same references,
+ * literals and small sequences are found in many rules).
+ *
+ * Children must be interned before their parent for a whole tree to be shared.
+ * An interner can be used by several threads at once.
+ */
+public class ExpressionInterner {
+
+  private final ConcurrentHashMap<Expression, Expression> expressions;
+
+  public ExpressionInterner() {
+    this(16);
+  }
+
+  /**
+   * @param expectedSize the number of distinct expressions expected.
+   */
+  public ExpressionInterner(int expectedSize) {
+    expressions = new ConcurrentHashMap<Expression, Expression>(expectedSize);
+  }
+
+  /**
+   * @return the instance equal to the expression that was interned first.
+   */
+  @SuppressWarnings("unchecked")
+  public <T extends Expression> T intern(T expression) {
+    Expression existing = expressions.putIfAbsent(expression, expression);
+    return existing == null? expression: (T)existing;
+  }
+
+  /**
+   * Adds the expression and all of its subexpressions, so that expressions
+   * interned later share them.
+   */
+  public void addAll(Expression expression) {
+    if(expressions.putIfAbsent(expression, expression) != null) {
+      // Its subexpressions are already there.
+      return;
+    }
+    if(expression instanceof Sequence) {
+      for(Expression e: ((Sequence)expression).getExpressions()) {
+        addAll(e);
+      }
+    } else if(expression instanceof Choice) {
+      for(Expression e: ((Choice)expression).getExpressions()) {
+        addAll(e);
+      }
+    } else if(expression instanceof Repetition) {
+      addAll(((Repetition)expression).getExpression());
+    }
+  }
+
+  public int size() {
+    return expressions.size();
+  }
+}
@@ -7,21 +7,82 @@
  */
 package net.nextencia.rrdiagram.grammar.model;
 
+import net.nextencia.rrdiagram.common.Utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * @author Christopher Deckers
  */
 public class Grammar {
 
   private Rule[] rules;
+  private Map<String, Rule> nameToRuleMap;
+  private List<String> duplicateRuleNames;
 
   public Grammar(Rule... rules) {
     this.rules = rules;
+    nameToRuleMap = new HashMap<String, Rule>(rules.length * 2);
+    duplicateRuleNames = new ArrayList<String>();
+    for(Rule rule: rules) {
+      // When a rule is defined multiple times, the first definition wins.
+      if(nameToRuleMap.containsKey(rule.getName())) {
+        duplicateRuleNames.add(rule.getName());
+      } else {
+        nameToRuleMap.put(rule.getName(), rule);
+      }
+    }
   }
 
   public Rule[] getRules() {
     return rules;
   }
 
+  /**
+   * @return the (first) rule defined with that name, or null if there is none.
+   */
+  public Rule getRule(String name) {
+    return nameToRuleMap.get(name);
+  }
+
+  /**
+   * @return the names of the rules that are defined more than once, once per extra definition.
+   */
+  public List<String> getDuplicateRuleNames() {
+    return Collections.unmodifiableList(duplicateRuleNames);
+  }
+
+  /**
+   * @return the content hash of each rule, by name and in definition order.
+   * Only the first definition of a rule is considered, like getRule().
+   */
+  public Map<String, String> getRuleHashes() {
+    Map<String, String> ruleHashes = new LinkedHashMap<String, String>(rules.length * 2);
+    for(Rule rule: rules) {
+      if(!ruleHashes.containsKey(rule.getName())) {
+        ruleHashes.put(rule.getName(), rule.getContentHash());
+      }
+    }
+    return ruleHashes;
+  }
+
+  /**
+   * @return a digest of the whole grammar, which changes whenever a rule is
+   * added, removed, reordered or modified.
+   */
+  public String getContentHash() {
+    StringBuilder sb = new StringBuilder();
+    for(Rule rule: rules) {
+      sb.append(rule.getName()).append(' ').append(rule.getContentHash()).append('\n');
+    }
+    return Utils.sha256(sb.toString());
+  }
+
   public String toBNF(GrammarToBNF grammarToBNF) {
     StringBuilder sb = new StringBuilder();
     for(int i=0; i<rules.length; i++) {
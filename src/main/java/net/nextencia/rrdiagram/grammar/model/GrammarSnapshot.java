@@ -0,0 +1,335 @@
+// Copyright (c) YugabyteDB, Inc.
+
+package net.nextencia.rrdiagram.grammar.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.nextencia.rrdiagram.common.Utils;
+
+/**
+ * Binary form of a parsed grammar, to skip parsing when the grammar file did
+ * not change. A snapshot records the hash of the text it was parsed from and
+ * the build of RRDiagram that parsed it (see Utils.getBuildHash()), and is only
+ * used for that text and that build: another parser could read the text
+ * differently.
+ *
+ * The layout is a header followed by three tables, all numbers being 32-bit
+ * big-endian integers:
+ * <pre>
+ * magic, format, hash of the build (string), hash of the source text (string)
+ * string count, then each string: length in bytes, UTF-8 bytes
+ * node count, then each node: type, then
+ *   literal, rule reference, special sequence: string index
+ *   sequence, choice: child count, child node indexes
+ *   repetition: child node index, min count, max count (-1 if unbounded)
+ * rule count, then each rule: name string index, node index, original text string index (-1 if none)
+ * </pre>
+ * Strings appear once in the string table, and equal expressions once in the
+ * node table, children before their parents.
+ */
+public class GrammarSnapshot {
+
+  public static final String FILE_EXTENSION = ".snapshot";
+
+  private static final int MAGIC = 0x52524753; // "RRGS"
+  private static final int FORMAT = 2;
+
+  private static final int LITERAL = 1;
+  private static final int RULE_REFERENCE = 2;
+  private static final int SPECIAL_SEQUENCE = 3;
+  private static final int SEQUENCE = 4;
+  private static final int CHOICE = 5;
+  private static final int REPETITION = 6;
+
+  private GrammarSnapshot() {}
+
+  /**
+   * @return the snapshot file of a grammar file, next to it.
+   */
+  public static File getFile(File grammarFile) {
+    return new File(grammarFile.getPath() + FILE_EXTENSION);
+  }
+
+  /**
+   * Writes the snapshot to a temporary file first, so that readers never see
+   * a partial snapshot.
+   */
+  public static void write(Grammar grammar, String sourceHash, File file) throws IOException {
+    File tmpFile = new File(file.getParentFile(), "." + file.getName() + ".tmp");
+    Files.write(tmpFile.toPath(), toBytes(grammar, sourceHash));
+    try {
+      Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * @return the grammar of the snapshot file, or null if there is none or if
+   * it was not made from the text with the given hash.
+   * @throws IOException if the file can't be read or is not a valid snapshot.
+   */
+  public static Grammar read(File file, String sourceHash) throws IOException {
+    if (!file.isFile()) {
+      return null;
+    }
+    // A single read, the file is small compared to the text it replaces.
+    return fromBytes(Files.readAllBytes(file.toPath()), sourceHash);
+  }
+
+  public static byte[] toBytes(Grammar grammar, String sourceHash) throws IOException {
+    Writer writer = new Writer();
+    // An unknown build is written as an empty hash, and its snapshots are never read back.
+    String buildHash = Utils.getBuildHash() == null ? "" : Utils.getBuildHash();
+    writer.addString(buildHash);
+    writer.addString(sourceHash);
+    Rule[] rules = grammar.getRules();
+    int[] ruleNodes = new int[rules.length];
+    for (int i = 0; i < rules.length; i++) {
+      writer.addString(rules[i].getName());
+      ruleNodes[i] = writer.addNode(rules[i].getExpression());
+      if (rules[i].getOriginalExpressionText() != null) {
+        writer.addString(rules[i].getOriginalExpressionText());
+      }
+    }
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(baos);
+    out.writeInt(MAGIC);
+    out.writeInt(FORMAT);
+    out.writeInt(writer.stringIndexes.get(buildHash));
+    out.writeInt(writer.stringIndexes.get(sourceHash));
+    out.writeInt(writer.strings.size());
+    for (String s : writer.strings) {
+      byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+    out.writeInt(writer.nodes.size());
+    for (int[] node : writer.nodes) {
+      for (int n : node) {
+        out.writeInt(n);
+      }
+    }
+    out.writeInt(rules.length);
+    for (int i = 0; i < rules.length; i++) {
+      out.writeInt(writer.stringIndexes.get(rules[i].getName()));
+      out.writeInt(ruleNodes[i]);
+      String originalText = rules[i].getOriginalExpressionText();
+      out.writeInt(originalText == null ? -1 : writer.stringIndexes.get(originalText));
+    }
+    out.flush();
+    return baos.toByteArray();
+  }
+
+  /**
+   * @return the grammar of the snapshot, or null if it was not made from the
+   * text with the given hash, or by another build.
+   * @throws IOException if the bytes are not a valid snapshot.
+   */
+  public static Grammar fromBytes(byte[] bytes, String sourceHash) throws IOException {
+    try {
+      ByteBuffer buffer = ByteBuffer.wrap(bytes);
+      if (buffer.getInt() != MAGIC) {
+        throw new IOException("Not a grammar snapshot");
+      }
+      if (buffer.getInt() != FORMAT) {
+        // written by another version, parse the text again
+        return null;
+      }
+      int buildHashIndex = buffer.getInt();
+      int hashIndex = buffer.getInt();
+      String[] strings = new String[getCount(buffer)];
+      for (int i = 0; i < strings.length; i++) {
+        int length = buffer.getInt();
+        strings[i] = new String(bytes, buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+      }
+      String buildHash = Utils.getBuildHash();
+      if (!strings[hashIndex].equals(sourceHash) || buildHash == null || !strings[buildHashIndex].equals(buildHash)) {
+        return null;
+      }
+      // Nodes are read where they are, so only their offsets are kept.
+      int[] nodeOffsets = new int[getCount(buffer)];
+      for (int i = 0; i < nodeOffsets.length; i++) {
+        nodeOffsets[i] = buffer.position();
+        int type = buffer.getInt();
+        switch (type) {
+          case SEQUENCE:
+          case CHOICE: {
+            int childCount = buffer.getInt();
+            buffer.position(buffer.position() + childCount * 4);
+            break;
+          }
+          case REPETITION:
+            buffer.position(buffer.position() + 12);
+            break;
+          default:
+            buffer.position(buffer.position() + 4);
+            break;
+        }
+      }
+      Reader reader = new Reader(buffer, nodeOffsets, strings);
+      Rule[] rules = new Rule[getCount(buffer)];
+      for (int i = 0; i < rules.length; i++) {
+        String name = strings[buffer.getInt()];
+        Expression expression = reader.getExpression(buffer.getInt());
+        int originalTextIndex = buffer.getInt();
+        rules[i] = new Rule(name, expression, originalTextIndex == -1 ? null : strings[originalTextIndex]);
+      }
+      return new Grammar(rules);
+    } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException | NegativeArraySizeException e) {
+      throw new IOException("Truncated or corrupted grammar snapshot", e);
+    }
+  }
+
+  /**
+   * @return a count read from the buffer, checked against what is left to read
+   * (each item takes at least 4 bytes) before anything is allocated for it.
+   */
+  private static int getCount(ByteBuffer buffer) {
+    int count = buffer.getInt();
+    if (count < 0 || count > buffer.remaining() / 4) {
+      throw new IndexOutOfBoundsException("Invalid count " + count + " at " + (buffer.position() - 4));
+    }
+    return count;
+  }
+
+  private static class Writer {
+    private final List<String> strings = new ArrayList<String>();
+    private final Map<String, Integer> stringIndexes = new HashMap<String, Integer>();
+    private final List<int[]> nodes = new ArrayList<int[]>();
+    // encoded node -> its index, to write equal expressions once
+    private final Map<String, Integer> nodeIndexes = new HashMap<String, Integer>();
+
+    int addString(String s) {
+      Integer index = stringIndexes.get(s);
+      if (index == null) {
+        index = strings.size();
+        strings.add(s);
+        stringIndexes.put(s, index);
+      }
+      return index;
+    }
+
+    int addNode(Expression expression) {
+      int[] node;
+      if (expression instanceof Literal) {
+        node = new int[] {LITERAL, addString(((Literal) expression).getText())};
+      } else if (expression instanceof RuleReference) {
+        node = new int[] {RULE_REFERENCE, addString(((RuleReference) expression).getRuleName())};
+      } else if (expression instanceof SpecialSequence) {
+        node = new int[] {SPECIAL_SEQUENCE, addString(((SpecialSequence) expression).getText())};
+      } else if (expression instanceof Sequence || expression instanceof Choice) {
+        Expression[] children = expression instanceof Sequence
+            ? ((Sequence) expression).getExpressions()
+            : ((Choice) expression).getExpressions();
+        node = new int[children.length + 2];
+        node[0] = expression instanceof Sequence ? SEQUENCE : CHOICE;
+        node[1] = children.length;
+        for (int i = 0; i < children.length; i++) {
+          node[i + 2] = addNode(children[i]);
+        }
+      } else if (expression instanceof Repetition) {
+        Repetition repetition = (Repetition) expression;
+        Integer max = repetition.getMaxRepetitionCount();
+        node = new int[] {REPETITION, addNode(repetition.getExpression()),
+                          repetition.getMinRepetitionCount(), max == null ? -1 : max};
+      } else {
+        throw new IllegalArgumentException("Unsupported expression: " + expression.getClass().getName());
+      }
+      String key = Arrays.toString(node);
+      Integer index = nodeIndexes.get(key);
+      if (index == null) {
+        index = nodes.size();
+        nodes.add(node);
+        nodeIndexes.put(key, index);
+      }
+      return index;
+    }
+  }
+
+  private static class Reader {
+    private final ByteBuffer buffer;
+    private final int[] nodeOffsets;
+    private final String[] strings;
+    private final Expression[] expressions;
+
+    Reader(ByteBuffer buffer, int[] nodeOffsets, String[] strings) {
+      this.buffer = buffer;
+      this.nodeOffsets = nodeOffsets;
+      this.strings = strings;
+      this.expressions = new Expression[nodeOffsets.length];
+    }
+
+    /**
+     * Each node is read once: its uses share its expression, like the
+     * expressions of a parsed grammar (see ExpressionInterner).
+     */
+    Expression getExpression(int index) {
+      Expression expression = expressions[index];
+      if (expression == null) {
+        expression = readExpression(index);
+        expressions[index] = expression;
+      }
+      return expression;
+    }
+
+    private Expression readExpression(int index) {
+      int offset = nodeOffsets[index];
+      switch (buffer.getInt(offset)) {
+        case LITERAL:
+          return new Literal(strings[buffer.getInt(offset + 4)]);
+        case RULE_REFERENCE:
+          return new RuleReference(strings[buffer.getInt(offset + 4)]);
+        case SPECIAL_SEQUENCE:
+          return new SpecialSequence(strings[buffer.getInt(offset + 4)]);
+        case SEQUENCE:
+          return new Sequence(getExpressions(index, offset + 4));
+        case CHOICE:
+          return new Choice(getExpressions(index, offset + 4));
+        case REPETITION: {
+          int max = buffer.getInt(offset + 12);
+          return new Repetition(getChild(index, offset + 4), buffer.getInt(offset + 8), max == -1 ? null : max);
+        }
+        default:
+          throw new IndexOutOfBoundsException("Invalid node type at " + offset);
+      }
+    }
+
+    private Expression[] getExpressions(int index, int offset) {
+      int count = buffer.getInt(offset);
+      if (count < 0 || count > (buffer.limit() - offset - 4) / 4) {
+        throw new IndexOutOfBoundsException("Invalid child count " + count + " of node " + index);
+      }
+      Expression[] expressions = new Expression[count];
+      for (int i = 0; i < expressions.length; i++) {
+        expressions[i] = getChild(index, offset + 4 + i * 4);
+      }
+      return expressions;
+    }
+
+    private Expression getChild(int index, int offset) {
+      int childIndex = buffer.getInt(offset);
+      // Children come first, which also rules out cycles.
+      if (childIndex < 0 || childIndex >= index) {
+        throw new IndexOutOfBoundsException("Invalid child node " + childIndex + " of node " + index);
+      }
+      return getExpression(childIndex);
+    }
+  }
+}
@@ -21,10 +21,12 @@ import java.util.Set;
  */
 public class Literal extends Expression {
 
-  private String text;
+  private final String text;
+  private final int hashCode;
 
   public Literal(String text) {
     this.text = text;
+    this.hashCode = Literal.class.getName().hashCode() * 31 + text.hashCode();
   }
 
   @Override
@@ -64,9 +66,17 @@ public class Literal extends Expression {
 
   @Override
   public boolean equals(Object o) {
-    if(!(o instanceof Literal)) {
+    if(o == this) {
+      return true;
+    }
+    if(!(o instanceof Literal) || hashCode != o.hashCode()) {
       return false;
     }
     return text.equals(((Literal)o).text);
   }
+
+  @Override
+  public int hashCode() {
+    return hashCode;
+  }
 }
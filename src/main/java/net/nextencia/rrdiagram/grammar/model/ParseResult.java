@@ -0,0 +1,265 @@
+// Copyright (c) YugabyteDB, Inc.
+
+package net.nextencia.rrdiagram.grammar.model;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The grammar read by BNFToGrammar.parse(), with the problems found in the text
+ * and where each rule and expression comes from.
+ *
+ * Parsing goes on after an error, so that all of them are reported at once; the
+ * grammar then holds what could be made of the malformed parts, and should not
+ * be used in place of a valid one.
+ */
+public class ParseResult {
+
+  public static class Diagnostic {
+
+    public static enum Severity {
+      ERROR,
+      WARNING,
+    }
+
+    private final Severity severity;
+    private final String message;
+    private final SourceSpan span;
+
+    public Diagnostic(Severity severity, String message, SourceSpan span) {
+      this.severity = severity;
+      this.message = message;
+      this.span = span;
+    }
+
+    public Severity getSeverity() {
+      return severity;
+    }
+
+    public String getMessage() {
+      return message;
+    }
+
+    public SourceSpan getSpan() {
+      return span;
+    }
+
+    @Override
+    public String toString() {
+      return span + ": " + severity.name().toLowerCase() + ": " + message;
+    }
+  }
+
+  /**
+   * Where a rule or an expression was read: one per place in the rules, unlike
+   * expressions which are shared (see ExpressionInterner). The children are
+   * those of the expression: the expressions of a Sequence or a Choice, the
+   * expression of a Repetition, or the expression of a rule.
+   */
+  static class Occurrence {
+    static final Occurrence[] NO_CHILDREN = new Occurrence[0];
+    // not read from the text, like the implicit empty branch of an optional choice
+    static final Occurrence NONE = new Occurrence(-1, -1, NO_CHILDREN);
+    final int start;
+    final int end;
+    final Occurrence[] children;
+    Occurrence(int start, int end, Occurrence... children) {
+      this.start = start;
+      this.end = end;
+      this.children = children;
+    }
+  }
+
+  private final Grammar grammar;
+  private final List<Diagnostic> diagnostics;
+  // text of the grammar, until the spans are looked up
+  private char[] chars;
+  private final int length;
+  private int[] lineStarts;
+  // The occurrence of each rule of the grammar, whose child is that of its
+  // expression, or null for a rule taken unchanged from a previous grammar.
+  private final Occurrence[] ruleOccurrences;
+  private Map<Rule, Occurrence> ruleToOccurrenceMap;
+  private Map<Object, SourceSpan> spans;
+
+  ParseResult(Grammar grammar, List<Diagnostic> diagnostics, char[] chars, int length, Occurrence[] ruleOccurrences) {
+    this.grammar = grammar;
+    this.diagnostics = Collections.unmodifiableList(diagnostics);
+    this.chars = chars;
+    this.length = length;
+    this.ruleOccurrences = ruleOccurrences;
+  }
+
+  /**
+   * @return the offset of the start of each line.
+   */
+  static int[] getLineStarts(char[] chars, int length) {
+    int lineCount = 1;
+    for (int i = 0; i < length; i++) {
+      if (chars[i] == '\n') {
+        lineCount++;
+      }
+    }
+    int[] lineStarts = new int[lineCount];
+    int line = 1;
+    for (int i = 0; i < length; i++) {
+      if (chars[i] == '\n') {
+        lineStarts[line++] = i + 1;
+      }
+    }
+    return lineStarts;
+  }
+
+  static SourceSpan createSpan(int[] lineStarts, int start, int end) {
+    int line = Arrays.binarySearch(lineStarts, start);
+    if (line < 0) {
+      line = -line - 2;
+    }
+    return new SourceSpan(start, end, line + 1, start - lineStarts[line] + 1);
+  }
+
+  public Grammar getGrammar() {
+    return grammar;
+  }
+
+  /**
+   * @return the errors and warnings, in the order of the text.
+   */
+  public List<Diagnostic> getDiagnostics() {
+    return diagnostics;
+  }
+
+  public boolean hasErrors() {
+    for (Diagnostic diagnostic : diagnostics) {
+      if (diagnostic.getSeverity() == Diagnostic.Severity.ERROR) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the span of the rule, from its name to its terminating ';'.
+   */
+  public SourceSpan getSpan(Rule rule) {
+    return getSpans().get(rule);
+  }
+
+  /**
+   * @return the span the expression was read from, or null if it was not read
+   * from the text (like the implicit empty branch of an optional choice), or if
+   * it belongs to a rule taken unchanged from a previous grammar. Also null for
+   * an expression found at several places of the grammar: equal expressions are
+   * a single object (see ExpressionInterner), whose places have a span each, see
+   * getSpan(Rule, int...).
+   */
+  public SourceSpan getSpan(Expression expression) {
+    return getSpans().get(expression);
+  }
+
+  /**
+   * @param path the place of the expression in the expression of the rule: at
+   * each level, the index in getExpressions() of a Sequence or a Choice, or 0
+   * for the expression of a Repetition. An empty path is the expression of the
+   * rule itself.
+   * @return the span the expression at that place was read from, or null if it
+   * was not read from the text or if the rule was taken unchanged from a
+   * previous grammar.
+   * @throws IndexOutOfBoundsException if there is no expression at that place.
+   */
+  public synchronized SourceSpan getSpan(Rule rule, int... path) {
+    getSpans();
+    Occurrence occurrence = ruleToOccurrenceMap.get(rule);
+    if (occurrence == null || occurrence.children.length == 0) {
+      return null;
+    }
+    occurrence = occurrence.children[0];
+    for (int index : path) {
+      occurrence = occurrence.children[index];
+    }
+    return occurrence.start < 0 ? null : createSpan(lineStarts, occurrence.start, occurrence.end);
+  }
+
+  /**
+   * Spans are only recorded while parsing, and looked up when first needed.
+   */
+  private synchronized Map<Object, SourceSpan> getSpans() {
+    if (spans == null) {
+      lineStarts = getLineStarts(chars, length);
+      chars = null;
+      Rule[] rules = grammar.getRules();
+      ruleToOccurrenceMap = new IdentityHashMap<Rule, Occurrence>(rules.length);
+      spans = new IdentityHashMap<Object, SourceSpan>(rules.length * 8);
+      Set<Expression> sharedExpressions = getSharedExpressions(grammar);
+      for (int i = 0; i < rules.length; i++) {
+        Occurrence occurrence = ruleOccurrences[i];
+        if (occurrence == null) {
+          continue;
+        }
+        ruleToOccurrenceMap.put(rules[i], occurrence);
+        spans.put(rules[i], createSpan(lineStarts, occurrence.start, occurrence.end));
+        if (occurrence.children.length > 0) {
+          addSpans(rules[i].getExpression(), occurrence.children[0], sharedExpressions);
+        }
+      }
+    }
+    return spans;
+  }
+
+  private void addSpans(Expression expression, Occurrence occurrence, Set<Expression> sharedExpressions) {
+    if (sharedExpressions.contains(expression)) {
+      // So are its subexpressions.
+      return;
+    }
+    if (occurrence.start >= 0) {
+      spans.put(expression, createSpan(lineStarts, occurrence.start, occurrence.end));
+    }
+    if (expression instanceof Sequence) {
+      Expression[] expressions = ((Sequence)expression).getExpressions();
+      for (int i = 0; i < expressions.length; i++) {
+        addSpans(expressions[i], occurrence.children[i], sharedExpressions);
+      }
+    } else if (expression instanceof Choice) {
+      Expression[] expressions = ((Choice)expression).getExpressions();
+      for (int i = 0; i < expressions.length; i++) {
+        addSpans(expressions[i], occurrence.children[i], sharedExpressions);
+      }
+    } else if (expression instanceof Repetition) {
+      addSpans(((Repetition)expression).getExpression(), occurrence.children[0], sharedExpressions);
+    }
+  }
+
+  /**
+   * @return the expressions found at more than one place of the rules.
+   */
+  private static Set<Expression> getSharedExpressions(Grammar grammar) {
+    Set<Expression> seenExpressions = Collections.newSetFromMap(new IdentityHashMap<Expression, Boolean>());
+    Set<Expression> sharedExpressions = Collections.newSetFromMap(new IdentityHashMap<Expression, Boolean>());
+    for (Rule rule : grammar.getRules()) {
+      addOccurrence(rule.getExpression(), seenExpressions, sharedExpressions);
+    }
+    return sharedExpressions;
+  }
+
+  private static void addOccurrence(Expression expression, Set<Expression> seenExpressions, Set<Expression> sharedExpressions) {
+    // Once an expression is shared, so are its subexpressions: each one is visited at most twice.
+    if (!seenExpressions.add(expression) && !sharedExpressions.add(expression)) {
+      return;
+    }
+    if (expression instanceof Sequence) {
+      for (Expression e : ((Sequence)expression).getExpressions()) {
+        addOccurrence(e, seenExpressions, sharedExpressions);
+      }
+    } else if (expression instanceof Choice) {
+      for (Expression e : ((Choice)expression).getExpressions()) {
+        addOccurrence(e, seenExpressions, sharedExpressions);
+      }
+    } else if (expression instanceof Repetition) {
+      addOccurrence(((Repetition)expression).getExpression(), seenExpressions, sharedExpressions);
+    }
+  }
+}
@@ -22,17 +22,23 @@ import java.util.List;
  */
 public class Repetition extends Expression {
 
-  private Expression expression;
-  private int minRepetitionCount;
-  private Integer maxRepetitionCount;
-
-  // Previous expression if within a sequence -- set&used when generating YBNF.
-  private Expression prevExpression = null;
+  private final Expression expression;
+  private final int minRepetitionCount;
+  private final Integer maxRepetitionCount;
+  private final int hashCode;
+  // Sizes of the YBNF text, after an expression that is not repeated, that is the
+  // repeated expression, or that is its last one (see toYBNF()). Computed when first needed.
+  private int ybnfSize = -1;
+  private int ybnfSizeAfterExpression = -1;
+  private int ybnfSizeAfterLastExpression = -1;
 
   public Repetition(Expression expression, int minRepetitionCount, Integer maxRepetitionCount) {
     this.expression = expression;
     this.minRepetitionCount = minRepetitionCount;
     this.maxRepetitionCount = maxRepetitionCount;
+    int hashCode = Repetition.class.getName().hashCode() * 31 + expression.hashCode();
+    hashCode = (hashCode * 31 + minRepetitionCount) * 31 + (maxRepetitionCount == null? -1: maxRepetitionCount);
+    this.hashCode = hashCode;
   }
 
   public Expression getExpression() {
@@ -142,6 +148,8 @@ public class Repetition extends Expression {
 
   @Override
   public void toYBNF(YBNFStringBuilder sb, boolean isWrapped) {
+    // Previous expression if within a sequence.
+    Expression prevExpression = sb.getPreviousExpression();
     if (minRepetitionCount > 0) {
       // e.g.: 'expr expr expr'
       prevExpression = expression;
@@ -180,17 +188,45 @@ public class Repetition extends Expression {
     return expression.getUndefinedRuleRefs(rules);
   }
 
+  @Override
+  public int getYBNFSize(boolean isWrapped, Expression previousExpression) {
+    // The text does not depend on isWrapped, only on what the previous expression is.
+    if (minRepetitionCount == 0 && maxRepetitionCount == null) {
+      if (expression.equals(previousExpression)) {
+        if (ybnfSizeAfterExpression == -1) {
+          ybnfSizeAfterExpression = YBNFStringBuilder.measure(this, isWrapped, previousExpression);
+        }
+        return ybnfSizeAfterExpression;
+      }
+      if (expression instanceof Sequence &&
+          ((Sequence) expression).getLastExpression().equals(previousExpression)) {
+        if (ybnfSizeAfterLastExpression == -1) {
+          ybnfSizeAfterLastExpression = YBNFStringBuilder.measure(this, isWrapped, previousExpression);
+        }
+        return ybnfSizeAfterLastExpression;
+      }
+    }
+    if (ybnfSize == -1) {
+      ybnfSize = YBNFStringBuilder.measure(this, isWrapped, previousExpression);
+    }
+    return ybnfSize;
+  }
+
   @Override
   public boolean equals(Object o) {
-    if(!(o instanceof Repetition)) {
+    if(o == this) {
+      return true;
+    }
+    if(!(o instanceof Repetition) || hashCode != o.hashCode()) {
       return false;
     }
     Repetition exp2 = (Repetition)o;
-    return expression.equals(exp2.expression) && minRepetitionCount == exp2.minRepetitionCount && maxRepetitionCount == null? exp2.maxRepetitionCount == null: maxRepetitionCount.equals(exp2.maxRepetitionCount);
+    return expression.equals(exp2.expression) && minRepetitionCount == exp2.minRepetitionCount && (maxRepetitionCount == null? exp2.maxRepetitionCount == null: maxRepetitionCount.equals(exp2.maxRepetitionCount));
   }
 
-  public void setPrevExpression(Expression prev) {
-    prevExpression = prev;
+  @Override
+  public int hashCode() {
+    return hashCode;
   }
 
 }
@@ -10,6 +10,9 @@ package net.nextencia.rrdiagram.grammar.model;
 import net.nextencia.rrdiagram.common.YBNFStringBuilder;
 import net.nextencia.rrdiagram.grammar.rrdiagram.RRDiagram;
 
+import net.nextencia.rrdiagram.common.Utils;
+
+import java.util.Collections;
 import java.util.Set;
 
 /**
@@ -17,9 +20,10 @@ import java.util.Set;
  */
 public class Rule {
 
-  private String name;
-  private Expression expression;
-  private String originalExpressionText;
+  private final String name;
+  private final Expression expression;
+  private final String originalExpressionText;
+  private volatile String contentHash;
 
   public Rule(String name, Expression expression) {
     this(name, expression, null);
@@ -35,6 +39,10 @@ public class Rule {
     return name;
   }
 
+  public Expression getExpression() {
+    return expression;
+  }
+
   public String getOriginalExpressionText() {
     return originalExpressionText;
   }
@@ -58,11 +66,10 @@ public class Rule {
     return sb.toString();
   }
 
+  // The state of the rendering is kept by the builder, not by the (shared)
+  // expressions, so that rules can be rendered concurrently.
   public String toYBNF() {
-    YBNFStringBuilder size_estimator = new YBNFStringBuilder();
-    size_estimator.append(expression, true);
-
-    YBNFStringBuilder sb = new YBNFStringBuilder(name);
+    YBNFStringBuilder sb = new YBNFStringBuilder(name, expression.getYBNFSize(true, null));
     sb.append(expression, true);
     return sb.toString();
   }
@@ -71,6 +78,26 @@ public class Rule {
     return expression.getUndefinedRuleRefs(rules);
   }
 
+  /**
+   * @return the names of the rules referenced by this rule.
+   */
+  public Set<String> getRuleRefs() {
+    return expression.getUndefinedRuleRefs(Collections.<String>emptySet());
+  }
+
+  /**
+   * @return a digest of the canonical BNF form of the rule. Two rules with the
+   * same digest render the same grammar and diagrams.
+   */
+  public String getContentHash() {
+    String hash = contentHash;
+    if(hash == null) {
+      hash = Utils.sha256(toBNF(new GrammarToBNF()));
+      contentHash = hash;
+    }
+    return hash;
+  }
+
   @Override
   public String toString() {
     return toBNF(new GrammarToBNF());
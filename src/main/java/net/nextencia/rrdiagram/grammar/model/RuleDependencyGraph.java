@@ -0,0 +1,81 @@
+// Copyright (c) YugabyteDB, Inc.
+
+package net.nextencia.rrdiagram.grammar.model;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * References between the rules of a grammar, in both directions.
+ *
+ * Rendered outputs only link to the rules they reference, so a change of a rule
+ * only affects the outputs that render that rule. The graph tells which rules
+ * are left with dangling links when a rule is removed.
+ */
+public class RuleDependencyGraph {
+
+  // rule name -> names of the rules it references
+  private final Map<String, Set<String>> references = new HashMap<String, Set<String>>();
+  // rule name -> names of the rules referencing it
+  private final Map<String, Set<String>> referrers = new HashMap<String, Set<String>>();
+
+  public RuleDependencyGraph(Grammar grammar) {
+    for (Rule rule : grammar.getRules()) {
+      // Only the first definition of a rule is used, see Grammar.getRule().
+      if (grammar.getRule(rule.getName()) != rule) {
+        continue;
+      }
+      Set<String> refs = rule.getRuleRefs();
+      references.put(rule.getName(), refs);
+      for (String ref : refs) {
+        Set<String> ruleReferrers = referrers.get(ref);
+        if (ruleReferrers == null) {
+          ruleReferrers = new HashSet<String>();
+          referrers.put(ref, ruleReferrers);
+        }
+        ruleReferrers.add(rule.getName());
+      }
+    }
+  }
+
+  /**
+   * @return the names of the rules referenced by the given rule.
+   */
+  public Set<String> getReferences(String ruleName) {
+    Set<String> refs = references.get(ruleName);
+    return refs == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(refs);
+  }
+
+  /**
+   * @return the names of the rules referencing the given rule, whether it is defined or not.
+   */
+  public Set<String> getReferrers(String ruleName) {
+    Set<String> refs = referrers.get(ruleName);
+    return refs == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(refs);
+  }
+
+  /**
+   * Compares two versions of a grammar by the hashes of their rules (see
+   * Grammar.getRuleHashes()).
+   * @return the names of the rules that were added, removed or modified, sorted.
+   */
+  public static Set<String> getChangedRules(Map<String, String> oldRuleHashes,
+                                            Map<String, String> newRuleHashes) {
+    Set<String> changedRules = new TreeSet<String>();
+    for (Map.Entry<String, String> entry : newRuleHashes.entrySet()) {
+      if (!entry.getValue().equals(oldRuleHashes.get(entry.getKey()))) {
+        changedRules.add(entry.getKey());
+      }
+    }
+    for (String ruleName : oldRuleHashes.keySet()) {
+      if (!newRuleHashes.containsKey(ruleName)) {
+        changedRules.add(ruleName);
+      }
+    }
+    return changedRules;
+  }
+}
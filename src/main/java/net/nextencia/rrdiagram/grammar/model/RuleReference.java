@@ -23,10 +23,12 @@ import java.util.Set;
  */
 public class RuleReference extends Expression {
 
-  private String ruleName;
+  private final String ruleName;
+  private final int hashCode;
 
   public RuleReference(String ruleName) {
     this.ruleName = ruleName;
+    this.hashCode = RuleReference.class.getName().hashCode() * 31 + ruleName.hashCode();
   }
 
   public String getRuleName() {
@@ -72,10 +74,17 @@ public class RuleReference extends Expression {
 
   @Override
   public boolean equals(Object o) {
-    if(!(o instanceof RuleReference)) {
+    if(o == this) {
+      return true;
+    }
+    if(!(o instanceof RuleReference) || hashCode != o.hashCode()) {
       return false;
     }
     return ruleName.equals(((RuleReference)o).ruleName);
   }
 
+  @Override
+  public int hashCode() {
+    return hashCode;
+  }
 }
@@ -24,14 +24,20 @@ import net.nextencia.rrdiagram.grammar.rrdiagram.RRSequence;
  */
 public class Sequence extends Expression {
 
-  private Expression[] expressions;
+  private final Expression[] expressions;
+  private final int hashCode;
 
   public Sequence(Expression... expressions) {
-    this.expressions = expressions;
+    this.expressions = expressions.clone();
+    this.hashCode = Sequence.class.getName().hashCode() * 31 + Arrays.hashCode(this.expressions);
   }
 
   public Expression[] getExpressions() {
-    return expressions;
+    return expressions.clone();
+  }
+
+  public int getExpressionCount() {
+    return expressions.length;
   }
 
   public Expression getLastExpression() {
@@ -103,20 +109,12 @@ public class Sequence extends Expression {
       return;
     }
 
+    // Repetitions get the previous expression so they can generate the '...' correctly.
     List<Expression> expressionList = Arrays.asList(expressions);
-
-    // Set previous expression for repetitions so it can generate the '...' correctly.
-    for (int i = 1; i < expressionList.size(); i++) {
-      Expression expr = expressionList.get(i);
-      if (expr instanceof Repetition) {
-        ((Repetition) expr).setPrevExpression(expressionList.get(i - 1));
-      }
-    }
-
     if(!isWrapped) {
-      sb.appendExprList(expressionList, "{ "," "," }", true);
+      sb.appendSequence(expressionList, "{ "," "," }", true);
     } else {
-      sb.appendExprList(expressionList, ""," ","", true);
+      sb.appendSequence(expressionList, ""," ","", true);
     }
   }
 
@@ -131,10 +129,18 @@ public class Sequence extends Expression {
 
   @Override
   public boolean equals(Object o) {
-    if(!(o instanceof Sequence)) {
+    if(o == this) {
+      return true;
+    }
+    if(!(o instanceof Sequence) || hashCode != o.hashCode()) {
       return false;
     }
     return Arrays.equals(expressions, ((Sequence)o).expressions);
   }
 
+  @Override
+  public int hashCode() {
+    return hashCode;
+  }
+
 }
@@ -0,0 +1,49 @@
+// Copyright (c) YugabyteDB, Inc.
+
+package net.nextencia.rrdiagram.grammar.model;
+
+/**
+ * A range of characters in the text of a grammar, with the line and column
+ * (both starting at 1) where it starts.
+ */
+public class SourceSpan {
+
+  private final int start;
+  private final int end;
+  private final int line;
+  private final int column;
+
+  public SourceSpan(int start, int end, int line, int column) {
+    this.start = start;
+    this.end = end;
+    this.line = line;
+    this.column = column;
+  }
+
+  /**
+   * @return the offset of the first character.
+   */
+  public int getStart() {
+    return start;
+  }
+
+  /**
+   * @return the offset following the last character.
+   */
+  public int getEnd() {
+    return end;
+  }
+
+  public int getLine() {
+    return line;
+  }
+
+  public int getColumn() {
+    return column;
+  }
+
+  @Override
+  public String toString() {
+    return line + ":" + column;
+  }
+}
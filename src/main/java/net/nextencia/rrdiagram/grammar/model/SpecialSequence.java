@@ -20,10 +20,16 @@ import java.util.Set;
  */
 public class SpecialSequence extends Expression {
 
-  private String text;
+  private final String text;
+  private final int hashCode;
 
   public SpecialSequence(String text) {
     this.text = text;
+    this.hashCode = SpecialSequence.class.getName().hashCode() * 31 + text.hashCode();
+  }
+
+  public String getText() {
+    return text;
   }
 
   @Override
@@ -50,10 +56,17 @@ public class SpecialSequence extends Expression {
 
   @Override
   public boolean equals(Object o) {
-    if(!(o instanceof SpecialSequence)) {
+    if(o == this) {
+      return true;
+    }
+    if(!(o instanceof SpecialSequence) || hashCode != o.hashCode()) {
       return false;
     }
     return text.equals(((SpecialSequence)o).text);
   }
 
+  @Override
+  public int hashCode() {
+    return hashCode;
+  }
 }
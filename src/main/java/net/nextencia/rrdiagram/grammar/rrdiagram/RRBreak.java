@@ -15,12 +15,12 @@ import net.nextencia.rrdiagram.grammar.rrdiagram.RRDiagram.SvgContent;
 public class RRBreak extends RRElement {
 
   @Override
-  protected void computeLayoutInfo(RRDiagramToSVG rrDiagramToSVG) {
+  protected LayoutInfo computeLayoutInfo(RRDiagramToSVG rrDiagramToSVG, RRLayout layout) {
     throw new IllegalStateException("This element must not be nested and should have been processed before entering generation.");
   }
 
   @Override
-  protected void toSVG(RRDiagramToSVG rrDiagramToSVG, int xOffset, int yOffset, SvgContent svgContent) {
+  protected void toSVG(RRDiagramToSVG rrDiagramToSVG, RRLayout layout, int xOffset, int yOffset, SvgContent svgContent) {
     throw new IllegalStateException("This element must not be nested and should have been processed before entering generation.");
   }
 
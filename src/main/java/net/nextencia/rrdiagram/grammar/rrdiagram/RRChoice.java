@@ -14,21 +14,21 @@ import net.nextencia.rrdiagram.grammar.rrdiagram.RRDiagram.SvgContent;
  */
 public class RRChoice extends RRElement {
 
-  private RRElement[] rrElements;
+  private final RRElement[] rrElements;
 
   public RRChoice(RRElement... rrElements) {
-    this.rrElements = rrElements;
+    // Layouts are cached per element (see RRLayout), so the children must not change.
+    this.rrElements = rrElements.clone();
   }
 
   @Override
-  protected void computeLayoutInfo(RRDiagramToSVG rrDiagramToSVG) {
+  protected LayoutInfo computeLayoutInfo(RRDiagramToSVG rrDiagramToSVG, RRLayout layout) {
     int width = 0;
     int height = 0;
     int connectorOffset = 0;
     for (int i = 0; i < rrElements.length; i++) {
       RRElement rrElement = rrElements[i];
-      rrElement.computeLayoutInfo(rrDiagramToSVG);
-      LayoutInfo layoutInfo = rrElement.getLayoutInfo();
+      LayoutInfo layoutInfo = layout.getLayoutInfo(rrElement);
       if(i == 0) {
         connectorOffset = layoutInfo.getConnectorOffset();
       } else {
@@ -38,12 +38,12 @@ public class RRChoice extends RRElement {
       width = Math.max(width, layoutInfo.getWidth());
     }
     width += 20 + 20;
-    setLayoutInfo(new LayoutInfo(width, height, connectorOffset));
+    return new LayoutInfo(width, height, connectorOffset);
   }
 
   @Override
-  protected void toSVG(RRDiagramToSVG rrDiagramToSVG, int xOffset, int yOffset, SvgContent svgContent) {
-    LayoutInfo layoutInfo = getLayoutInfo();
+  protected void toSVG(RRDiagramToSVG rrDiagramToSVG, RRLayout layout, int xOffset, int yOffset, SvgContent svgContent) {
+    LayoutInfo layoutInfo = layout.getLayoutInfo(this);
     int y1 = yOffset + layoutInfo.getConnectorOffset();
     int x1 = xOffset + 10;
     int x2 = xOffset + layoutInfo.getWidth() - 10;
@@ -52,7 +52,7 @@ public class RRChoice extends RRElement {
     int yOffset2 = yOffset;
     for (int i = 0; i < rrElements.length; i++) {
       RRElement rrElement = rrElements[i];
-      LayoutInfo layoutInfo2 = rrElement.getLayoutInfo();
+      LayoutInfo layoutInfo2 = layout.getLayoutInfo(rrElement);
       int width = layoutInfo2.getWidth();
       int height = layoutInfo2.getHeight();
       y2 = yOffset2 + layoutInfo2.getConnectorOffset();
@@ -69,7 +69,7 @@ public class RRChoice extends RRElement {
         svgContent.addPathConnector(x1, y2 - 5, "q0 5 5 5", x1 + 5, y2);
         svgContent.addLineConnector(x1 + 5, y2, xOffset2, y2);
       }
-      rrElement.toSVG(rrDiagramToSVG, xOffset2, yOffset2, svgContent);
+      rrElement.toSVG(rrDiagramToSVG, layout, xOffset2, yOffset2, svgContent);
       if(i == 0) {
         // Line to first element
         svgContent.addLineConnector(xOffset2 + width, y2, x2 + 10, y2);
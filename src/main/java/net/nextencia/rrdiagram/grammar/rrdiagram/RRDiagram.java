@@ -21,10 +21,11 @@ import net.nextencia.rrdiagram.grammar.rrdiagram.RRElement.LayoutInfo;
  */
 public class RRDiagram {
 
-  private RRElement rrElement;
+  // The lines of the diagram, split at Break elements.
+  private final RRElement[] lineElements;
 
   public RRDiagram(RRElement rrElement) {
-    this.rrElement = rrElement;
+    this.lineElements = getLineElements(rrElement);
   }
 
   private static final String SVG_ELEMENTS_SEPARATOR = "";//\n";
@@ -299,7 +300,7 @@ public class RRDiagram {
     }
   }
 
-  String toSVG(RRDiagramToSVG rrDiagramToSVG) {
+  private static RRElement[] getLineElements(RRElement rrElement) {
     List<RRElement> rrElementList = new ArrayList<RRElement>();
 
     // Split elements into "lines" (for each Break element encountered -- if any).
@@ -321,6 +322,11 @@ public class RRDiagram {
     } else {
       rrElementList.add(rrElement);
     }
+    return rrElementList.toArray(new RRElement[0]);
+  }
+
+  String toSVG(RRDiagramToSVG rrDiagramToSVG, RRLayout layout) {
+    List<RRElement> rrElementList = Arrays.asList(lineElements);
 
     // Compute diagram size.
     int width = 5;
@@ -330,8 +336,7 @@ public class RRDiagram {
         height += 5;
       }
       RRElement rrElement = rrElementList.get(i);
-      rrElement.computeLayoutInfo(rrDiagramToSVG);
-      LayoutInfo layoutInfo = rrElement.getLayoutInfo();
+      LayoutInfo layoutInfo = layout.getLayoutInfo(rrElement);
       width = Math.max(width, 15 + layoutInfo.getWidth() + 15);
       height += layoutInfo.getHeight() + 5;
     }
@@ -343,7 +348,7 @@ public class RRDiagram {
     // Generate diagram.
     for(int i = 0; i < rrElementList.size(); i++) {
       RRElement rrElement = rrElementList.get(i);
-      LayoutInfo layoutInfo2 = rrElement.getLayoutInfo();
+      LayoutInfo layoutInfo2 = layout.getLayoutInfo(rrElement);
       int connectorOffset2 = layoutInfo2.getConnectorOffset();
       int width2 = layoutInfo2.getWidth();
       int height2 = layoutInfo2.getHeight();
@@ -353,7 +358,7 @@ public class RRDiagram {
       xPos += addLineStartMarker(svgContent, xOffset, yPos, i == 0);
 
       // Add content.
-      rrElement.toSVG(rrDiagramToSVG, xPos, yOffset, svgContent);
+      rrElement.toSVG(rrDiagramToSVG, layout, xPos, yOffset, svgContent);
       xPos += width2;
 
       // Add end decoration.
@@ -27,7 +27,26 @@ public class RRDiagramToSVG {
   }
 
   public String convert(RRDiagram rrDiagram) {
-    return rrDiagram.toSVG(this);
+    return rrDiagram.toSVG(this, new RRLayout(this));
+  }
+
+  /**
+   * Converts a diagram with a layout kept from a previous conversion of it, so
+   * that its elements are not measured again.
+   * @param layout a layout made with this object, while its style is unchanged.
+   */
+  public String convert(RRDiagram rrDiagram, RRLayout layout) {
+    if(layout.getRRDiagramToSVG() != this) {
+      throw new IllegalArgumentException("The layout was made for another style!");
+    }
+    return rrDiagram.toSVG(this, layout);
+  }
+
+  /**
+   * @return the sizes of texts, shared by all the diagrams since they only depend on fonts.
+   */
+  public TextMetrics getTextMetrics() {
+    return TextMetrics.getSharedInstance();
   }
 
   private Color connectorColor = new Color(34, 34, 34);
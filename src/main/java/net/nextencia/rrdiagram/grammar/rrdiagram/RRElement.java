@@ -16,9 +16,9 @@ public abstract class RRElement {
 
   protected static class LayoutInfo {
 
-    private int width;
-    private int height;
-    private int connectorOffset;
+    private final int width;
+    private final int height;
+    private final int connectorOffset;
 
     public LayoutInfo(int width, int height, int connectorOffset) {
       this.width = width;
@@ -40,18 +40,12 @@ public abstract class RRElement {
 
   }
 
-  private LayoutInfo layoutInfo;
+  /**
+   * Elements are immutable, their layout is kept by the RRLayout, which gets the
+   * layout of the nested elements.
+   */
+  protected abstract LayoutInfo computeLayoutInfo(RRDiagramToSVG rrDiagramToSVG, RRLayout layout);
 
-  public void setLayoutInfo(LayoutInfo layoutInfo) {
-    this.layoutInfo = layoutInfo;
-  }
-
-  public LayoutInfo getLayoutInfo() {
-    return layoutInfo;
-  }
-
-  protected abstract void computeLayoutInfo(RRDiagramToSVG rrDiagramToSVG);
-
-  protected abstract void toSVG(RRDiagramToSVG rrDiagramToSVG, int xOffset, int yOffset, SvgContent svgContent);
+  protected abstract void toSVG(RRDiagramToSVG rrDiagramToSVG, RRLayout layout, int xOffset, int yOffset, SvgContent svgContent);
 
 }
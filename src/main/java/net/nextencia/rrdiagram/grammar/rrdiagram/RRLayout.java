@@ -0,0 +1,58 @@
+// Copyright (c) YugabyteDB, Inc.
+
+package net.nextencia.rrdiagram.grammar.rrdiagram;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import net.nextencia.rrdiagram.grammar.rrdiagram.RRElement.LayoutInfo;
+
+/**
+ * Sizes of diagram elements under the style of an RRDiagramToSVG, computed when
+ * first needed and kept by element identity. Elements hold no layout, so the
+ * same diagram can be laid out at once under several styles, and a layout can
+ * be kept to convert its diagram again without measuring the texts again.
+ *
+ * A layout is not thread-safe: concurrent conversions use a layout each.
+ */
+public class RRLayout {
+
+  private final RRDiagramToSVG rrDiagramToSVG;
+  private final Map<RRElement, LayoutInfo> elementToLayoutInfoMap = new IdentityHashMap<RRElement, LayoutInfo>();
+
+  /**
+   * @param rrDiagramToSVG the style of the layout, which must not change while the layout is used.
+   */
+  public RRLayout(RRDiagramToSVG rrDiagramToSVG) {
+    this.rrDiagramToSVG = rrDiagramToSVG;
+  }
+
+  public RRDiagramToSVG getRRDiagramToSVG() {
+    return rrDiagramToSVG;
+  }
+
+  LayoutInfo getLayoutInfo(RRElement rrElement) {
+    LayoutInfo layoutInfo = elementToLayoutInfoMap.get(rrElement);
+    if(layoutInfo == null) {
+      layoutInfo = rrElement.computeLayoutInfo(rrDiagramToSVG, this);
+      elementToLayoutInfoMap.put(rrElement, layoutInfo);
+    }
+    return layoutInfo;
+  }
+
+  public int getWidth(RRElement rrElement) {
+    return getLayoutInfo(rrElement).getWidth();
+  }
+
+  public int getHeight(RRElement rrElement) {
+    return getLayoutInfo(rrElement).getHeight();
+  }
+
+  /**
+   * @return the vertical position of the line going through the element.
+   */
+  public int getConnectorOffset(RRElement rrElement) {
+    return getLayoutInfo(rrElement).getConnectorOffset();
+  }
+
+}
@@ -14,13 +14,15 @@ import net.nextencia.rrdiagram.grammar.rrdiagram.RRDiagram.SvgContent;
  */
 public class RRLine extends RRElement {
 
+  private static final LayoutInfo LAYOUT_INFO = new LayoutInfo(0, 10, 5);
+
   @Override
-  protected void computeLayoutInfo(RRDiagramToSVG rrDiagramToSVG) {
-    setLayoutInfo(new LayoutInfo(0, 10, 5));
+  protected LayoutInfo computeLayoutInfo(RRDiagramToSVG rrDiagramToSVG, RRLayout layout) {
+    return LAYOUT_INFO;
   }
 
   @Override
-  protected void toSVG(RRDiagramToSVG rrDiagramToSVG, int xOffset, int yOffset, SvgContent svgContent) {
+  protected void toSVG(RRDiagramToSVG rrDiagramToSVG, RRLayout layout, int xOffset, int yOffset, SvgContent svgContent) {
   }
 
 }
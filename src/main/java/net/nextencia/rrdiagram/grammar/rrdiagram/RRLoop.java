@@ -8,8 +8,6 @@
 package net.nextencia.rrdiagram.grammar.rrdiagram;
 
 import java.awt.Font;
-import java.awt.font.FontRenderContext;
-import java.awt.geom.Rectangle2D;
 
 import net.nextencia.rrdiagram.common.Utils;
 import net.nextencia.rrdiagram.grammar.rrdiagram.RRDiagram.SvgContent;
@@ -19,10 +17,10 @@ import net.nextencia.rrdiagram.grammar.rrdiagram.RRDiagram.SvgContent;
  */
 public class RRLoop extends RRElement {
 
-  private RRElement rrElement;
-  private RRElement loopElement;
-  private int minRepetitionCount;
-  private Integer maxRepetitionCount;
+  private final RRElement rrElement;
+  private final RRElement loopElement;
+  private final int minRepetitionCount;
+  private final Integer maxRepetitionCount;
 
   /**
    * @param loopElement can be null.
@@ -44,32 +42,40 @@ public class RRLoop extends RRElement {
     this.maxRepetitionCount = maxRepetitionCount;
   }
 
-  private String cardinalitiesText;
-  private int cardinalitiesWidth;
-  private int fontYOffset;
+  private static class LoopLayoutInfo extends LayoutInfo {
+
+    private final String cardinalitiesText;
+    private final int cardinalitiesWidth;
+    private final int fontYOffset;
+
+    public LoopLayoutInfo(int width, int height, int connectorOffset, String cardinalitiesText, int cardinalitiesWidth, int fontYOffset) {
+      super(width, height, connectorOffset);
+      this.cardinalitiesText = cardinalitiesText;
+      this.cardinalitiesWidth = cardinalitiesWidth;
+      this.fontYOffset = fontYOffset;
+    }
+
+  }
 
   @Override
-  protected void computeLayoutInfo(RRDiagramToSVG rrDiagramToSVG) {
-    cardinalitiesText = null;
-    cardinalitiesWidth = 0;
-    fontYOffset = 0;
+  protected LayoutInfo computeLayoutInfo(RRDiagramToSVG rrDiagramToSVG, RRLayout layout) {
+    String cardinalitiesText = null;
+    int cardinalitiesWidth = 0;
+    int fontYOffset = 0;
     if(minRepetitionCount > 0 || maxRepetitionCount != null) {
       cardinalitiesText = minRepetitionCount + ".." + (maxRepetitionCount == null? "N": maxRepetitionCount);
-      FontRenderContext fontRenderContext = new FontRenderContext(null, true, false);
       Font font = rrDiagramToSVG.getLoopFont();
-      fontYOffset = Math.round(font.getLineMetrics(cardinalitiesText, fontRenderContext).getDescent());
-      Rectangle2D stringBounds = font.getStringBounds(cardinalitiesText, fontRenderContext);
-      cardinalitiesWidth = (int)Math.round(stringBounds.getWidth()) + 2;
+      TextMetrics textMetrics = rrDiagramToSVG.getTextMetrics();
+      fontYOffset = textMetrics.getDescent(font, cardinalitiesText);
+      cardinalitiesWidth = textMetrics.getWidth(font, cardinalitiesText) + 2;
 
     }
-    rrElement.computeLayoutInfo(rrDiagramToSVG);
-    LayoutInfo layoutInfo1 = rrElement.getLayoutInfo();
+    LayoutInfo layoutInfo1 = layout.getLayoutInfo(rrElement);
     int width = layoutInfo1.getWidth();
     int height = layoutInfo1.getHeight();
     int connectorOffset = layoutInfo1.getConnectorOffset();
     if(loopElement != null) {
-      loopElement.computeLayoutInfo(rrDiagramToSVG);
-      LayoutInfo layoutInfo2 = loopElement.getLayoutInfo();
+      LayoutInfo layoutInfo2 = layout.getLayoutInfo(loopElement);
       width = Math.max(width, layoutInfo2.getWidth());
       int height2 = layoutInfo2.getHeight();
       height += 5 + height2;
@@ -79,22 +85,23 @@ public class RRLoop extends RRElement {
       connectorOffset += 15;
     }
     width += 20 + 20 + cardinalitiesWidth;
-    setLayoutInfo(new LayoutInfo(width, height, connectorOffset));
+    return new LoopLayoutInfo(width, height, connectorOffset, cardinalitiesText, cardinalitiesWidth, fontYOffset);
   }
 
   @Override
-  protected void toSVG(RRDiagramToSVG rrDiagramToSVG, int xOffset, int yOffset, SvgContent svgContent) {
-    LayoutInfo layoutInfo1 = rrElement.getLayoutInfo();
+  protected void toSVG(RRDiagramToSVG rrDiagramToSVG, RRLayout layout, int xOffset, int yOffset, SvgContent svgContent) {
+    LayoutInfo layoutInfo1 = layout.getLayoutInfo(rrElement);
     int width1 = layoutInfo1.getWidth();
     int maxWidth = width1;
     int yOffset2 = yOffset;
-    LayoutInfo layoutInfo = getLayoutInfo();
+    LoopLayoutInfo layoutInfo = (LoopLayoutInfo)layout.getLayoutInfo(this);
+    int cardinalitiesWidth = layoutInfo.cardinalitiesWidth;
     int connectorOffset = layoutInfo.getConnectorOffset();
     int y1 = yOffset;
     int loopOffset = 0;
     int loopWidth = 0;
     if(loopElement != null) {
-      LayoutInfo layoutInfo2 = loopElement.getLayoutInfo();
+      LayoutInfo layoutInfo2 = layout.getLayoutInfo(loopElement);
       loopWidth = layoutInfo2.getWidth();
       maxWidth = Math.max(maxWidth, loopWidth);
       loopOffset = xOffset + 20 + (maxWidth - loopWidth) / 2;
@@ -114,13 +121,14 @@ public class RRLoop extends RRElement {
     svgContent.addPathConnector(x1, y1 + 5, "q0-5 5-5", x1 + 5, y1);
     if(loopElement != null) {
       svgContent.addLineConnector(x1 + 5, y1, loopOffset, y1);
-      loopElement.toSVG(rrDiagramToSVG, loopOffset, yOffset, svgContent);
+      loopElement.toSVG(rrDiagramToSVG, layout, loopOffset, yOffset, svgContent);
       loopPathStartX = loopOffset + loopWidth;
     }
     svgContent.addLineConnector(loopPathStartX, y1, x2 - 5, y1);
     svgContent.addPathConnector(x2 - 5, y1, "q5 0 5 5", x2, y1 + 5);
     svgContent.addLineConnector(x2, y1 + 5, x2, y2 - 5);
     svgContent.addPathConnector(x2, y2 - 5, "q0 5-5 5", x2 - 5, y2);
+    String cardinalitiesText = layoutInfo.cardinalitiesText;
     if(cardinalitiesText != null) {
       String cssClass = svgContent.getDefinedCSSClass(RRDiagram.CSS_LOOP_CARDINALITIES_TEXT_CLASS);
       if(cssClass == null) {
@@ -128,9 +136,9 @@ public class RRLoop extends RRElement {
         String loopTextColor = Utils.convertColorToHtml(rrDiagramToSVG.getLoopTextColor());
         cssClass = svgContent.setCSSClass(RRDiagram.CSS_LOOP_CARDINALITIES_TEXT_CLASS, "fill:" + loopTextColor + ";" + Utils.convertFontToCss(loopFont));
       }
-      svgContent.addElement("<text class=\"" + cssClass + "\" x=\"" + (x2 - cardinalitiesWidth) + "\" y=\"" + (y2 - fontYOffset - 5) + "\">" + Utils.escapeXML(cardinalitiesText) + "</text>");
+      svgContent.addElement("<text class=\"" + cssClass + "\" x=\"" + (x2 - cardinalitiesWidth) + "\" y=\"" + (y2 - layoutInfo.fontYOffset - 5) + "\">" + Utils.escapeXML(cardinalitiesText) + "</text>");
     }
-    rrElement.toSVG(rrDiagramToSVG, xOffset + 20 + (maxWidth - width1) / 2, yOffset2, svgContent);
+    rrElement.toSVG(rrDiagramToSVG, layout, xOffset + 20 + (maxWidth - width1) / 2, yOffset2, svgContent);
     svgContent.addLineConnector(x2 - cardinalitiesWidth - 10 - (maxWidth - width1) / 2, y2, xOffset + layoutInfo.getWidth(), y2);
   }
 
@@ -14,45 +14,45 @@ import net.nextencia.rrdiagram.grammar.rrdiagram.RRDiagram.SvgContent;
  */
 public class RRSequence extends RRElement {
 
-  private RRElement[] rrElements;
+  private final RRElement[] rrElements;
 
   public RRSequence(RRElement... rrElements) {
-    this.rrElements = rrElements;
+    // Layouts are cached per element (see RRLayout), so the children must not change.
+    this.rrElements = rrElements.clone();
   }
 
   public RRElement[] getRRElements() {
-    return rrElements;
+    return rrElements.clone();
   }
 
   @Override
-  protected void computeLayoutInfo(RRDiagramToSVG rrDiagramToSVG) {
+  protected LayoutInfo computeLayoutInfo(RRDiagramToSVG rrDiagramToSVG, RRLayout layout) {
     int width = 0;
     int aboveConnector = 0;
     int belowConnector = 0;
     for (int i = 0; i < rrElements.length; i++) {
       RRElement rrElement = rrElements[i];
-      rrElement.computeLayoutInfo(rrDiagramToSVG);
       if(i > 0) {
         width += 10;
       }
-      LayoutInfo layoutInfo = rrElement.getLayoutInfo();
+      LayoutInfo layoutInfo = layout.getLayoutInfo(rrElement);
       width += layoutInfo.getWidth();
       int height = layoutInfo.getHeight();
       int connectorOffset = layoutInfo.getConnectorOffset();
       aboveConnector = Math.max(aboveConnector, connectorOffset);
       belowConnector = Math.max(belowConnector, height - connectorOffset);
     }
-    setLayoutInfo(new LayoutInfo(width, aboveConnector + belowConnector, aboveConnector));
+    return new LayoutInfo(width, aboveConnector + belowConnector, aboveConnector);
   }
 
   @Override
-  protected void toSVG(RRDiagramToSVG rrDiagramToSVG, int xOffset, int yOffset, SvgContent svgContent) {
-    LayoutInfo layoutInfo = getLayoutInfo();
+  protected void toSVG(RRDiagramToSVG rrDiagramToSVG, RRLayout layout, int xOffset, int yOffset, SvgContent svgContent) {
+    LayoutInfo layoutInfo = layout.getLayoutInfo(this);
     int connectorOffset = layoutInfo.getConnectorOffset();
     int widthOffset = 0;
     for (int i = 0; i < rrElements.length; i++) {
       RRElement rrElement = rrElements[i];
-      LayoutInfo layoutInfo2 = rrElement.getLayoutInfo();
+      LayoutInfo layoutInfo2 = layout.getLayoutInfo(rrElement);
       int width2 = layoutInfo2.getWidth();
       int connectorOffset2 = layoutInfo2.getConnectorOffset();
       int xOffset2 = widthOffset + xOffset;
@@ -60,7 +60,7 @@ public class RRSequence extends RRElement {
       if(i > 0) {
         svgContent.addLineConnector(xOffset2 - 10, yOffset + connectorOffset, xOffset2, yOffset + connectorOffset);
       }
-      rrElement.toSVG(rrDiagramToSVG, xOffset2, yOffset2, svgContent);
+      rrElement.toSVG(rrDiagramToSVG, layout, xOffset2, yOffset2, svgContent);
       widthOffset += 10;
       widthOffset += width2;
     }
@@ -9,9 +9,6 @@ package net.nextencia.rrdiagram.grammar.rrdiagram;
 
 import java.awt.Font;
 import java.awt.Insets;
-import java.awt.font.FontRenderContext;
-import java.awt.font.LineMetrics;
-import java.awt.geom.Rectangle2D;
 
 import net.nextencia.rrdiagram.common.Utils;
 import net.nextencia.rrdiagram.grammar.rrdiagram.RRDiagram.SvgContent;
@@ -28,9 +25,9 @@ public class RRText extends RRElement {
     SPECIAL_SEQUENCE,
   }
 
-  private Type type;
-  private String text;
-  private String link;
+  private final Type type;
+  private final String text;
+  private final String link;
 
   public RRText(Type type, String text, String link) {
     this.type = type;
@@ -50,11 +47,19 @@ public class RRText extends RRElement {
     return link;
   }
 
-  private int fontYOffset;
+  private static class TextLayoutInfo extends LayoutInfo {
+
+    private final int fontYOffset;
+
+    public TextLayoutInfo(int width, int height, int connectorOffset, int fontYOffset) {
+      super(width, height, connectorOffset);
+      this.fontYOffset = fontYOffset;
+    }
+
+  }
 
   @Override
-  protected void computeLayoutInfo(RRDiagramToSVG rrDiagramToSVG) {
-    FontRenderContext fontRenderContext = new FontRenderContext(null, true, false);
+  protected LayoutInfo computeLayoutInfo(RRDiagramToSVG rrDiagramToSVG, RRLayout layout) {
     Font font;
     Insets insets;
     switch(type) {
@@ -72,20 +77,19 @@ public class RRText extends RRElement {
         break;
       default: throw new IllegalStateException("Unknown type: " + type);
     }
-    LineMetrics lineMetrics = font.getLineMetrics(text, fontRenderContext);
-    fontYOffset = Math.round(lineMetrics.getDescent());
-    Rectangle2D stringBounds = font.getStringBounds(text, fontRenderContext);
-    int width = (int)Math.round(stringBounds.getWidth());
-    int height = (int)Math.round(stringBounds.getHeight());
+    TextMetrics textMetrics = rrDiagramToSVG.getTextMetrics();
+    int fontYOffset = textMetrics.getDescent(font, text);
+    int width = textMetrics.getWidth(font, text);
+    int height = textMetrics.getHeight(font, text);
     int connectorOffset = insets.top + height - fontYOffset;
     width += insets.left + insets.right;
     height += insets.top + insets.bottom;
-    setLayoutInfo(new LayoutInfo(width, height, connectorOffset));
+    return new TextLayoutInfo(width, height, connectorOffset, fontYOffset);
   }
 
   @Override
-  protected void toSVG(RRDiagramToSVG rrDiagramToSVG, int xOffset, int yOffset, SvgContent svgContent) {
-    LayoutInfo layoutInfo = getLayoutInfo();
+  protected void toSVG(RRDiagramToSVG rrDiagramToSVG, RRLayout layout, int xOffset, int yOffset, SvgContent svgContent) {
+    TextLayoutInfo layoutInfo = (TextLayoutInfo)layout.getLayoutInfo(this);
     int width = layoutInfo.getWidth();
     int height = layoutInfo.getHeight();
     if(link != null) {
@@ -163,10 +167,8 @@ public class RRText extends RRElement {
         svgContent.addLineConnector(xOffset + width, yOffset + connectorOffset, xOffset + width - insets.right, yOffset + connectorOffset);
         break;
     }
-    FontRenderContext fontRenderContext = new FontRenderContext(null, true, false);
-    Rectangle2D stringBounds = font.getStringBounds(text, fontRenderContext);
     int textXOffset = xOffset + insets.left;
-    int textYOffset = yOffset + insets.top + (int)Math.round(stringBounds.getHeight()) - fontYOffset;
+    int textYOffset = yOffset + insets.top + rrDiagramToSVG.getTextMetrics().getHeight(font, text) - layoutInfo.fontYOffset;
     svgContent.addElement("<text class=\"" + cssTextClass + "\" x=\"" + textXOffset + "\" y=\"" + textYOffset + "\">" + Utils.escapeXML(text) + "</text>");
     if(link != null) {
       svgContent.addElement("</a>");
@@ -0,0 +1,88 @@
+// Copyright (c) YugabyteDB, Inc.
+
+package net.nextencia.rrdiagram.grammar.rrdiagram;
+
+import java.awt.Font;
+import java.awt.font.FontRenderContext;
+import java.awt.geom.Rectangle2D;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sizes of the texts of diagrams, measured once per font and text. Measuring
+ * through AWT is the main cost of laying out diagrams, and diagrams keep using
+ * the same few fonts and the same rule names and literals.
+ *
+ * The metrics are those of Font.getLineMetrics() and Font.getStringBounds()
+ * for the text. They are kept per text: with a logical font, the line metrics
+ * depend on the fonts that display the characters of the text.
+ * An instance can be used by several threads at once.
+ */
+public class TextMetrics {
+
+  private static final FontRenderContext FONT_RENDER_CONTEXT = new FontRenderContext(null, true, false);
+
+  // Above that many texts for a font, its sizes are dropped rather than growing without bound.
+  private static final int MAX_TEXT_COUNT = 100000;
+
+  private static final TextMetrics SHARED_INSTANCE = new TextMetrics();
+
+  /**
+   * @return the instance shared by all the diagrams.
+   */
+  public static TextMetrics getSharedInstance() {
+    return SHARED_INSTANCE;
+  }
+
+  private static class TextSize {
+    private final int width;
+    private final int height;
+    private final int descent;
+    public TextSize(Font font, String text) {
+      Rectangle2D stringBounds = font.getStringBounds(text, FONT_RENDER_CONTEXT);
+      width = (int)Math.round(stringBounds.getWidth());
+      height = (int)Math.round(stringBounds.getHeight());
+      descent = Math.round(font.getLineMetrics(text, FONT_RENDER_CONTEXT).getDescent());
+    }
+  }
+
+  private final ConcurrentHashMap<Font, ConcurrentHashMap<String, TextSize>> fontToTextSizeMap = new ConcurrentHashMap<Font, ConcurrentHashMap<String, TextSize>>();
+
+  private TextSize getTextSize(Font font, String text) {
+    ConcurrentHashMap<String, TextSize> textToSizeMap = fontToTextSizeMap.get(font);
+    if(textToSizeMap == null) {
+      textToSizeMap = new ConcurrentHashMap<String, TextSize>();
+      ConcurrentHashMap<String, TextSize> existing = fontToTextSizeMap.putIfAbsent(font, textToSizeMap);
+      if(existing != null) {
+        textToSizeMap = existing;
+      }
+    }
+    TextSize textSize = textToSizeMap.get(text);
+    if(textSize == null) {
+      textSize = new TextSize(font, text);
+      if(textToSizeMap.size() >= MAX_TEXT_COUNT) {
+        textToSizeMap.clear();
+      }
+      textToSizeMap.put(text, textSize);
+    }
+    return textSize;
+  }
+
+  public int getWidth(Font font, String text) {
+    return getTextSize(font, text).width;
+  }
+
+  /**
+   * @return the height of the line of the text.
+   */
+  public int getHeight(Font font, String text) {
+    return getTextSize(font, text).height;
+  }
+
+  /**
+   * @return the distance from the baseline to the bottom of the line of the text.
+   */
+  public int getDescent(Font font, String text) {
+    return getTextSize(font, text).descent;
+  }
+
+}
@@ -0,0 +1,535 @@
+// Copyright (c) YugabyteDB, Inc.
+
+package net.nextencia.rrdiagram;
+
+import java.awt.Font;
+import java.awt.font.FontRenderContext;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.nextencia.rrdiagram.grammar.model.BNFToGrammar;
+import net.nextencia.rrdiagram.grammar.model.Grammar;
+import net.nextencia.rrdiagram.grammar.model.GrammarSnapshot;
+import net.nextencia.rrdiagram.grammar.model.GrammarToBNF;
+import net.nextencia.rrdiagram.grammar.model.GrammarToRRDiagram;
+import net.nextencia.rrdiagram.grammar.model.ParseResult;
+import net.nextencia.rrdiagram.grammar.model.Rule;
+import net.nextencia.rrdiagram.grammar.rrdiagram.RRDiagram;
+import net.nextencia.rrdiagram.grammar.rrdiagram.RRDiagramToSVG;
+import net.nextencia.rrdiagram.grammar.rrdiagram.TextMetrics;
+
+/**
+ * Benchmarks of the parsing, formatting, rendering and serving of a grammar.
+ * They are not run by the build: after "mvn test-compile", run
+ * <pre>
+ * java -cp target/classes:target/test-classes net.nextencia.rrdiagram.Benchmarks [--ebnf file] [name...]
+ * </pre>
+ * with the names of the benchmarks to run, all of them by default:
+ * - parse: parsing of the grammar, and of a synthetic grammar many times its
+ *   size, sequentially and in parallel, and the lookup of the rule spans
+ * - snapshot: loading a binary snapshot of the grammar against parsing it
+ * - lookup: finding the rules by name, against a scan of the rules
+ * - ybnf: generating the grammar text of every rule
+ * - layout: rendering the diagram of every rule, and measuring its texts
+ * - registry: getting processors of mixed versions from several threads while
+ *   other versions load
+ * - server: requests to the server from 64 clients, for each executor mode
+ *   (uses the port of the server, 1314)
+ * The grammar is ysql_grammar.ebnf by default.
+ *
+ * Each operation is run for a while to warm up the JIT, then timed; the bytes
+ * allocated per operation by the thread running it are printed when the JVM can
+ * tell them. The duration of both phases is set in seconds with
+ * -Dbenchmark.seconds (3 by default).
+ */
+public class Benchmarks {
+
+  private static final long NANOS = Long.getLong("benchmark.seconds", 3) * 1000000000L;
+  private static final int CLIENT_COUNT = 64;
+
+  // results of the operations, so that the JIT does not drop them
+  private static volatile int sink;
+
+  private final File ebnfFile;
+  private final String text;
+
+  Benchmarks(File ebnfFile) throws IOException {
+    this.ebnfFile = ebnfFile;
+    this.text = new String(Files.readAllBytes(ebnfFile.toPath()), StandardCharsets.UTF_8);
+  }
+
+  public static void main(String[] args) throws Exception {
+    File ebnfFile = new File("ysql_grammar.ebnf");
+    List<String> names = new ArrayList<String>();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--ebnf")) {
+        i++;
+        ebnfFile = new File(args[i]);
+      } else {
+        names.add(args[i]);
+      }
+    }
+    if (names.isEmpty()) {
+      names = Arrays.asList("parse", "snapshot", "lookup", "ybnf", "layout", "registry", "server");
+    }
+    Benchmarks benchmarks = new Benchmarks(ebnfFile);
+    System.out.println("Grammar " + ebnfFile + ", " + benchmarks.text.length() + " chars, Java "
+                       + System.getProperty("java.version") + ", "
+                       + Runtime.getRuntime().availableProcessors() + " processor(s)");
+    for (String name : names) {
+      System.out.println();
+      System.out.println("# " + name);
+      switch (name) {
+        case "parse": benchmarks.parse(); break;
+        case "snapshot": benchmarks.snapshot(); break;
+        case "lookup": benchmarks.lookup(); break;
+        case "ybnf": benchmarks.ybnf(); break;
+        case "layout": benchmarks.layout(); break;
+        case "registry": benchmarks.registry(); break;
+        case "server": benchmarks.server(); break;
+        default:
+          System.err.println("unknown benchmark: " + name);
+          System.exit(1);
+      }
+    }
+    // the server leaves non-daemon threads behind
+    System.exit(0);
+  }
+
+  /**
+   * Runs the operation until warmed up, then prints its average time and allocation.
+   */
+  private static void measure(String name, Callable<?> operation) throws Exception {
+    for (long end = System.nanoTime() + NANOS; System.nanoTime() < end; ) {
+      sink += operation.call().hashCode();
+    }
+    long startBytes = getAllocatedBytes();
+    long start = System.nanoTime();
+    long elapsed;
+    int count = 0;
+    do {
+      sink += operation.call().hashCode();
+      count++;
+      elapsed = System.nanoTime() - start;
+    } while (elapsed < NANOS);
+    long bytes = getAllocatedBytes() - startBytes;
+    System.out.printf("%-55s %12.4f ms/op %12s%n", name, elapsed / 1e6 / count,
+                      startBytes < 0 ? "" : (bytes / count / 1024) + " KB/op");
+  }
+
+  /**
+   * @return the bytes allocated by the current thread so far, or -1 if unknown.
+   */
+  private static long getAllocatedBytes() {
+    ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+  /**
+   * @return the grammar repeated to reach the size, each copy with its own rule names.
+   */
+  private String createSyntheticText(int size) {
+    List<String> ruleNames = new ArrayList<String>();
+    for (Rule rule : new BNFToGrammar().convert(text).getRules()) {
+      ruleNames.add(Pattern.quote(rule.getName()));
+    }
+    // longest names first, so that a name does not match the start of another one
+    Collections.sort(ruleNames, new Comparator<String>() {
+      @Override
+      public int compare(String s1, String s2) {
+        return s2.length() - s1.length();
+      }
+    });
+    Pattern pattern = Pattern.compile("\\b(" + String.join("|", ruleNames) + ")\\b");
+    StringBuilder sb = new StringBuilder();
+    for (int copy = 1; sb.length() < size; copy++) {
+      Matcher matcher = pattern.matcher(text);
+      StringBuffer sbCopy = new StringBuffer();
+      while (matcher.find()) {
+        matcher.appendReplacement(sbCopy, "$1_" + copy);
+      }
+      matcher.appendTail(sbCopy);
+      sb.append(sbCopy).append('\n');
+    }
+    return sb.toString();
+  }
+
+  void parse() throws Exception {
+    measure("parse, from a string", new Callable<Object>() {
+      @Override
+      public Object call() {
+        return new BNFToGrammar().parse(text);
+      }
+    });
+    measure("parse, from a reader", new Callable<Object>() {
+      @Override
+      public Object call() throws IOException {
+        return new BNFToGrammar().parse(new StringReader(text));
+      }
+    });
+    final ParseResult result = new BNFToGrammar().parse(text);
+    final Rule[] rules = result.getGrammar().getRules();
+    measure("spans of all the rules and their expressions", new Callable<Object>() {
+      @Override
+      public Object call() {
+        int hash = 0;
+        for (Rule rule : rules) {
+          // null for the expressions shared with other places
+          hash += result.getSpan(rule).hashCode() + Objects.hashCode(result.getSpan(rule.getExpression()));
+        }
+        return hash;
+      }
+    });
+
+    final String syntheticText = createSyntheticText(4 * 1024 * 1024);
+    final BNFToGrammar parallelBNFToGrammar = new BNFToGrammar();
+    parallelBNFToGrammar.setForkJoinPool(ForkJoinPool.commonPool());
+    System.out.println("synthetic grammar: " + syntheticText.length() + " chars, "
+                       + new BNFToGrammar().convert(syntheticText).getRules().length + " rules");
+    measure("parse synthetic grammar", new Callable<Object>() {
+      @Override
+      public Object call() {
+        return new BNFToGrammar().parse(syntheticText);
+      }
+    });
+    measure("parse synthetic grammar, in parallel (" + ForkJoinPool.commonPool().getParallelism() + " threads)",
+            new Callable<Object>() {
+      @Override
+      public Object call() {
+        return parallelBNFToGrammar.parse(syntheticText);
+      }
+    });
+  }
+
+  void snapshot() throws Exception {
+    final Grammar grammar = new BNFToGrammar().convert(text);
+    final byte[] bytes = GrammarSnapshot.toBytes(grammar, "hash");
+    final File snapshotFile = File.createTempFile("benchmark", GrammarSnapshot.FILE_EXTENSION);
+    snapshotFile.deleteOnExit();
+    GrammarSnapshot.write(grammar, "hash", snapshotFile);
+    System.out.println("snapshot: " + bytes.length + " bytes");
+    measure("parse, from the file", new Callable<Object>() {
+      @Override
+      public Object call() throws IOException {
+        return new BNFToGrammar().convert(new String(Files.readAllBytes(ebnfFile.toPath()), StandardCharsets.UTF_8));
+      }
+    });
+    measure("read snapshot, from the file", new Callable<Object>() {
+      @Override
+      public Object call() throws IOException {
+        return GrammarSnapshot.read(snapshotFile, "hash");
+      }
+    });
+    measure("read snapshot, from bytes", new Callable<Object>() {
+      @Override
+      public Object call() throws IOException {
+        return GrammarSnapshot.fromBytes(bytes, "hash");
+      }
+    });
+    measure("write snapshot, to bytes", new Callable<Object>() {
+      @Override
+      public Object call() throws IOException {
+        return GrammarSnapshot.toBytes(grammar, "hash");
+      }
+    });
+  }
+
+  void lookup() throws Exception {
+    final Grammar grammar = new BNFToGrammar().convert(text);
+    final Rule[] rules = grammar.getRules();
+    System.out.println(rules.length + " rules");
+    measure("find every rule, by name", new Callable<Object>() {
+      @Override
+      public Object call() {
+        int hash = 0;
+        for (Rule rule : rules) {
+          hash += grammar.getRule(rule.getName()).hashCode();
+        }
+        return hash;
+      }
+    });
+    measure("find every rule, scanning the rules", new Callable<Object>() {
+      @Override
+      public Object call() {
+        int hash = 0;
+        for (Rule rule : rules) {
+          for (Rule candidate : rules) {
+            if (candidate.getName().equals(rule.getName())) {
+              hash += candidate.hashCode();
+              break;
+            }
+          }
+        }
+        return hash;
+      }
+    });
+  }
+
+  void ybnf() throws Exception {
+    final Rule[] rules = new BNFToGrammar().convert(text).getRules();
+    // The sizes of the expressions are kept, so only the first formatting measures them.
+    measure("parse, then format every rule", new Callable<Object>() {
+      @Override
+      public Object call() {
+        int hash = 0;
+        for (Rule rule : new BNFToGrammar().convert(text).getRules()) {
+          hash += rule.toYBNF().length();
+        }
+        return hash;
+      }
+    });
+    measure("format every rule", new Callable<Object>() {
+      @Override
+      public Object call() {
+        int hash = 0;
+        for (Rule rule : rules) {
+          hash += rule.toYBNF().length();
+        }
+        return hash;
+      }
+    });
+    final GrammarToBNF grammarToBNF = new GrammarToBNF();
+    measure("format every rule, as BNF", new Callable<Object>() {
+      @Override
+      public Object call() {
+        int hash = 0;
+        for (Rule rule : rules) {
+          hash += rule.toBNF(grammarToBNF).length();
+        }
+        return hash;
+      }
+    });
+  }
+
+  void layout() throws Exception {
+    final Rule[] rules = new BNFToGrammar().convert(text).getRules();
+    final RRDiagramToSVG rrDiagramToSVG = new RRDiagramToSVG();
+    final List<RRDiagram> rrDiagrams = new ArrayList<RRDiagram>();
+    for (Rule rule : rules) {
+      rrDiagrams.add(new GrammarToRRDiagram().convert(rule));
+    }
+    measure("diagram of every rule", new Callable<Object>() {
+      @Override
+      public Object call() {
+        int hash = 0;
+        for (Rule rule : rules) {
+          hash += new GrammarToRRDiagram().convert(rule).hashCode();
+        }
+        return hash;
+      }
+    });
+    measure("SVG of every diagram", new Callable<Object>() {
+      @Override
+      public Object call() {
+        int hash = 0;
+        for (RRDiagram rrDiagram : rrDiagrams) {
+          hash += rrDiagramToSVG.convert(rrDiagram).length();
+        }
+        return hash;
+      }
+    });
+    // The texts of the rule boxes, measured as in a layout and directly with AWT.
+    final Font font = rrDiagramToSVG.getRuleFont();
+    final FontRenderContext fontRenderContext = new FontRenderContext(null, true, false);
+    measure("size of every rule name", new Callable<Object>() {
+      @Override
+      public Object call() {
+        TextMetrics textMetrics = rrDiagramToSVG.getTextMetrics();
+        int hash = 0;
+        for (Rule rule : rules) {
+          hash += textMetrics.getWidth(font, rule.getName()) + textMetrics.getHeight(font, rule.getName())
+                  + textMetrics.getDescent(font, rule.getName());
+        }
+        return hash;
+      }
+    });
+    measure("size of every rule name, measured by AWT", new Callable<Object>() {
+      @Override
+      public Object call() {
+        double hash = 0;
+        for (Rule rule : rules) {
+          hash += font.getStringBounds(rule.getName(), fontRenderContext).getWidth()
+                  + font.getLineMetrics(rule.getName(), fontRenderContext).getDescent();
+        }
+        return hash;
+      }
+    });
+  }
+
+  void registry() throws Exception {
+    final int versionCount = 8;
+    final int threadCount = 8;
+    File previousDocsRoot = BNFProcessor.docsRoot;
+    File docsRoot = Files.createTempDirectory("benchmark").toFile();
+    for (int v = 0; v < versionCount; v++) {
+      File file = new File(docsRoot, "content/v" + v + "/api/ysql/syntax_resources/ysql_grammar.ebnf");
+      file.getParentFile().mkdirs();
+      Files.copy(ebnfFile.toPath(), file.toPath());
+    }
+    BNFProcessor.docsRoot = docsRoot;
+    final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    try {
+      // v0 stays loaded, the other versions are loaded again by each operation.
+      BNFProcessor.get("ysql", "v0");
+      measure("get loaded versions, " + threadCount + " threads x 10000", new Callable<Object>() {
+        @Override
+        public Object call() throws Exception {
+          return runThreads(executor, threadCount, 10000, 1);
+        }
+      });
+      final long[] maxNanos = new long[1];
+      measure("load " + (versionCount - 1) + " versions, " + threadCount + " threads", new Callable<Object>() {
+        @Override
+        public Object call() throws Exception {
+          for (int v = 1; v < versionCount; v++) {
+            BNFProcessor.processors.remove("ysql-v" + v);
+          }
+          long nanos = runThreads(executor, threadCount, 100, versionCount);
+          maxNanos[0] = Math.max(maxNanos[0], nanos);
+          return nanos;
+        }
+      });
+      System.out.printf("%-55s %12.4f ms%n", "longest get of the loaded version while loading", maxNanos[0] / 1e6);
+    } finally {
+      executor.shutdown();
+      BNFProcessor.docsRoot = previousDocsRoot;
+      for (int v = 0; v < versionCount; v++) {
+        BNFProcessor.processors.remove("ysql-v" + v);
+      }
+    }
+  }
+
+  /**
+   * Gets processors from the threads, the thread t getting the version t modulo
+   * the version count, so that thread 0 always gets the loaded version.
+   * @return the longest time thread 0 waited for a processor, in nanoseconds.
+   */
+  private static long runThreads(ExecutorService executor, int threadCount, final int getCount,
+                                 final int versionCount) throws Exception {
+    final CountDownLatch startLatch = new CountDownLatch(1);
+    List<Future<Long>> futures = new ArrayList<Future<Long>>();
+    for (int t = 0; t < threadCount; t++) {
+      final String version = "v" + (t % versionCount);
+      futures.add(executor.submit(new Callable<Long>() {
+        @Override
+        public Long call() throws Exception {
+          startLatch.await();
+          long maxNanos = 0;
+          for (int i = 0; i < getCount; i++) {
+            long start = System.nanoTime();
+            if (BNFProcessor.get("ysql", version) == null) {
+              throw new IllegalStateException("Unable to load " + version);
+            }
+            maxNanos = Math.max(maxNanos, System.nanoTime() - start);
+          }
+          return maxNanos;
+        }
+      }));
+    }
+    startLatch.countDown();
+    long maxNanos = futures.get(0).get();
+    for (Future<Long> future : futures) {
+      future.get();
+    }
+    return maxNanos;
+  }
+
+  void server() throws Exception {
+    final Rule[] rules = new BNFToGrammar().convert(text).getRules();
+    for (String executorMode : new String[] {"fixed:10", "forkjoin", "virtual"}) {
+      // without the response cache, every request renders its diagram
+      new Server(new String[] {"--server", "--ebnf", ebnfFile.getPath(), "--executor", executorMode,
+                               "--cache-size", "0"});
+      try {
+        // warmup, then the measure
+        request(rules, NANOS);
+        List<Long> latencies = request(rules, NANOS);
+        Collections.sort(latencies);
+        System.out.printf("%-55s %12.0f req/s, p50 %.2f ms, p99 %.2f ms%n",
+                          "executor " + executorMode + ", " + CLIENT_COUNT + " clients",
+                          latencies.size() / (NANOS / 1e9),
+                          latencies.get(latencies.size() / 2) / 1e6,
+                          latencies.get(latencies.size() * 99 / 100) / 1e6);
+      } finally {
+        get("/shutdown");
+        // HttpServer.stop() waits up to a second for the exchanges to complete.
+        Thread.sleep(1500);
+      }
+    }
+  }
+
+  /**
+   * Requests diagrams of rules from the clients for the duration.
+   * @return the latency of each request, in nanoseconds.
+   */
+  private static List<Long> request(final Rule[] rules, final long nanos) throws Exception {
+    ExecutorService clients = Executors.newFixedThreadPool(CLIENT_COUNT);
+    try {
+      final long end = System.nanoTime() + nanos;
+      List<Future<List<Long>>> futures = new ArrayList<Future<List<Long>>>();
+      for (int c = 0; c < CLIENT_COUNT; c++) {
+        final int client = c;
+        futures.add(clients.submit(new Callable<List<Long>>() {
+          @Override
+          public List<Long> call() throws IOException {
+            List<Long> latencies = new ArrayList<Long>();
+            for (int i = client; System.nanoTime() < end; i += CLIENT_COUNT) {
+              long start = System.nanoTime();
+              get("/ebnf?mode=diagram&depth=1&rules=" + rules[i % rules.length].getName());
+              latencies.add(System.nanoTime() - start);
+            }
+            return latencies;
+          }
+        }));
+      }
+      List<Long> latencies = new ArrayList<Long>();
+      for (Future<List<Long>> future : futures) {
+        latencies.addAll(future.get());
+      }
+      return latencies;
+    } finally {
+      clients.shutdown();
+    }
+  }
+
+  private static void get(String path) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:1314" + path).openConnection();
+    if (connection.getResponseCode() != 200) {
+      throw new IOException("Request " + path + " failed: " + connection.getResponseCode());
+    }
+    // read to the end, so that the connection is reused
+    InputStream in = connection.getInputStream();
+    try {
+      byte[] buffer = new byte[8192];
+      while (in.read(buffer) != -1) {
+      }
+    } finally {
+      in.close();
+    }
+  }
+}
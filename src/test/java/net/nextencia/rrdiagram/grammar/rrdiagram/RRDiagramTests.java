@@ -1,8 +1,27 @@
 package net.nextencia.rrdiagram.grammar.rrdiagram;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.awt.Font;
+import java.io.IOException;
 import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import javax.xml.parsers.DocumentBuilderFactory;
 
@@ -12,14 +31,19 @@ import org.xml.sax.InputSource;
 
 import net.nextencia.rrdiagram.grammar.model.BNFToGrammar;
 import net.nextencia.rrdiagram.grammar.model.Choice;
+import net.nextencia.rrdiagram.grammar.model.Expression;
 import net.nextencia.rrdiagram.grammar.model.Grammar;
+import net.nextencia.rrdiagram.grammar.model.GrammarSnapshot;
 import net.nextencia.rrdiagram.grammar.model.GrammarToBNF;
 import net.nextencia.rrdiagram.grammar.model.GrammarToRRDiagram;
 import net.nextencia.rrdiagram.grammar.model.Literal;
+import net.nextencia.rrdiagram.grammar.model.ParseResult;
 import net.nextencia.rrdiagram.grammar.model.Repetition;
 import net.nextencia.rrdiagram.grammar.model.Rule;
+import net.nextencia.rrdiagram.grammar.model.RuleDependencyGraph;
 import net.nextencia.rrdiagram.grammar.model.RuleReference;
 import net.nextencia.rrdiagram.grammar.model.Sequence;
+import net.nextencia.rrdiagram.grammar.model.SourceSpan;
 import net.nextencia.rrdiagram.grammar.model.SpecialSequence;
 
 /**
@@ -39,6 +63,241 @@ public class RRDiagramTests {
     assertEquals("r1 = a b;\nr2 = c d;", grammar("r1 = a b;\nr2 = c d;").toString());
   }
 
+  @Test
+  public void testGrammarGetRule() {
+    Grammar grammar = grammar("r1 = a b;\nr2 = c d;\nr1 = e;");
+    assertSame(grammar.getRules()[0], grammar.getRule("r1"));
+    assertSame(grammar.getRules()[1], grammar.getRule("r2"));
+    assertNull(grammar.getRule("r3"));
+    assertEquals(Arrays.asList("r1"), grammar.getDuplicateRuleNames());
+  }
+
+  @Test
+  public void testRuleDependencyGraph() {
+    Grammar before = grammar("r1 = r2 'x';\nr2 = r3 | r4;\nr3 = 'y';");
+    Grammar after = grammar("r1 = r2 'x';\nr2 = r3 | r5;\nr4 = 'z';");
+    RuleDependencyGraph graph = new RuleDependencyGraph(after);
+    assertEquals(new HashSet<String>(Arrays.asList("r3", "r5")), graph.getReferences("r2"));
+    assertEquals(new HashSet<String>(Arrays.asList("r2")), graph.getReferrers("r3"));
+    assertEquals(new HashSet<String>(), graph.getReferrers("r1"));
+    // r1 references r2, but only r2 itself changed
+    assertEquals(new TreeSet<String>(Arrays.asList("r2", "r3", "r4")),
+                 RuleDependencyGraph.getChangedRules(before.getRuleHashes(), after.getRuleHashes()));
+  }
+
+  @Test
+  public void testParallelConvert() {
+    // ';' in comments, literals, special sequences and groups don't end rules.
+    String text = "(* c ; *) a = 'x;' \"y;\" (* in ; *) ( b ; c ) [ d ; ] { e ; } ;\n"
+        + "b ::= (?s;?) | c ;\n(* tail; *) c = d\n";
+    BNFToGrammar bnfToGrammar = new BNFToGrammar();
+    bnfToGrammar.setForkJoinPool(new ForkJoinPool(2));
+    Grammar grammar = bnfToGrammar.convert(text);
+    Grammar expected = grammar(text);
+    assertEquals(3, grammar.getRules().length);
+    assertEquals(expected.toString(), grammar.toString());
+    for(int i=0; i<grammar.getRules().length; i++) {
+      assertEquals(expected.getRules()[i].getOriginalExpressionText(), grammar.getRules()[i].getOriginalExpressionText());
+    }
+  }
+
+  @Test
+  public void testIncrementalConvert() {
+    String text = "a = b c;\n(* c *) b = 'x';\nc = d | e;\n";
+    String newText = "a = b c;\n(* c *) b = 'y';\nd = e;\nc = d | e;\n";
+    Grammar grammar = grammar(text);
+    Grammar newGrammar = new BNFToGrammar().convert(newText, grammar, text);
+    assertEquals(grammar(newText).toString(), newGrammar.toString());
+    assertSame(grammar.getRule("a"), newGrammar.getRule("a"));
+    assertNotSame(grammar.getRule("b"), newGrammar.getRule("b"));
+    assertSame(grammar.getRule("c"), newGrammar.getRule("c"));
+  }
+
+  @Test
+  public void testParseDiagnostics() {
+    String text = "a = * b;\nc = d 3 *;\n  e = ( f ;\n";
+    ParseResult result = new BNFToGrammar().parse(text);
+    assertEquals(3, result.getGrammar().getRules().length);
+    assertEquals(Arrays.asList(
+        "1:5: error: Expecting an expression before '*'",
+        "2:7: error: Expecting an expression after '3 *'",
+        "3:7: error: Expecting ')' before the end of the text"),
+        Arrays.asList(result.getDiagnostics().get(0).toString(),
+                      result.getDiagnostics().get(1).toString(),
+                      result.getDiagnostics().get(2).toString()));
+    assertTrue(result.hasErrors());
+
+    result = new BNFToGrammar().parse("a = b;\n  c = d | 'e';");
+    assertFalse(result.hasErrors());
+    Rule rule = result.getGrammar().getRule("c");
+    assertEquals("2:3", result.getSpan(rule).toString());
+    Expression[] choices = ((Choice)rule.getExpression()).getExpressions();
+    assertEquals("2:7", result.getSpan(choices[0]).toString());
+    assertEquals("2:11", result.getSpan(choices[1]).toString());
+    assertEquals("'e'", text(result, choices[1], "a = b;\n  c = d | 'e';"));
+
+    // Expressions shared between rules have no single span, but each of their places has one.
+    result = new BNFToGrammar().parse("a = x y;\nb = x y | [ z ];");
+    rule = result.getGrammar().getRule("b");
+    assertEquals("2:1", result.getSpan(rule).toString());
+    choices = ((Choice)rule.getExpression()).getExpressions();
+    assertSame(result.getGrammar().getRule("a").getExpression(), choices[0]);
+    assertNull(result.getSpan(choices[0]));
+    assertNull(result.getSpan(((Sequence)choices[0]).getExpressions()[0]));
+    assertEquals("2:13", result.getSpan(choices[1]).toString());
+    assertEquals("2:5", result.getSpan(rule, 0).toString());
+    assertEquals("2:7", result.getSpan(rule, 0, 1).toString());
+    assertEquals("1:7", result.getSpan(result.getGrammar().getRule("a"), 1).toString());
+    assertEquals("2:13", result.getSpan(rule, 1).toString());
+    // the implicit empty branch of the optional choice
+    assertNull(result.getSpan(rule, 2));
+  }
+
+  private static String text(ParseResult result, Expression expression, String text) {
+    SourceSpan span = result.getSpan(expression);
+    return text.substring(span.getStart(), span.getEnd());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testConvertError() {
+    new BNFToGrammar().convert("a = b | +;");
+  }
+
+  @Test
+  public void testGrammarSnapshot() throws IOException {
+    String text = "a = b 'x' | 3 * c;\nb = (? s ?) [ 'x' | c ];\nc = { 'x' }+ d;\n";
+    Grammar grammar = grammar(text);
+    byte[] bytes = GrammarSnapshot.toBytes(grammar, "hash");
+    Grammar snapshotGrammar = GrammarSnapshot.fromBytes(bytes, "hash");
+    assertEquals(grammar.toString(), snapshotGrammar.toString());
+    assertEquals(grammar.getRule("b").getOriginalExpressionText(),
+                 snapshotGrammar.getRule("b").getOriginalExpressionText());
+    assertEquals(grammar.getContentHash(), snapshotGrammar.getContentHash());
+    // made from another text
+    assertNull(GrammarSnapshot.fromBytes(bytes, "other"));
+    try {
+      GrammarSnapshot.fromBytes(Arrays.copyOf(bytes, bytes.length - 5), "hash");
+      fail();
+    } catch (IOException e) {
+    }
+    // a string count larger than the snapshot
+    byte[] corrupted = bytes.clone();
+    ByteBuffer.wrap(corrupted).putInt(16, Integer.MAX_VALUE);
+    try {
+      GrammarSnapshot.fromBytes(corrupted, "hash");
+      fail();
+    } catch (IOException e) {
+    }
+  }
+
+  @Test
+  public void testSharedExpressions() {
+    Grammar grammar = grammar("a = x { ',' x };\nb = { ',' x };\nc = 'y' | x { ',' x };\n");
+    Expression a = grammar.getRule("a").getExpression();
+    Expression b = grammar.getRule("b").getExpression();
+    // equal expressions are one object
+    assertSame(((Sequence)a).getExpressions()[1], b);
+    assertSame(a, ((Choice)grammar.getRule("c").getExpression()).getExpressions()[1]);
+    // which is rendered according to where it is
+    assertEquals("a ::= x [ , ... ]", grammar.getRule("a").toYBNF());
+    assertEquals(grammar("b = { ',' x };").getRule("b").toYBNF(), grammar.getRule("b").toYBNF());
+    assertEquals(a.hashCode(), grammar("a = x { ',' x };").getRule("a").getExpression().hashCode());
+    assertFalse(new Repetition(new Literal("x"), 0, null).equals(new Repetition(new Literal("y"), 0, 2)));
+    assertFalse(new Repetition(new Literal("x"), 1, 2).equals(new Repetition(new Literal("y"), 1, 2)));
+  }
+
+  @Test
+  public void testConcurrentToYBNF() throws Exception {
+    // Rules sharing repetitions in different places, some long enough to be wrapped.
+    StringBuilder sb = new StringBuilder();
+    for(int i=0; i<200; i++) {
+      sb.append("r").append(i).append(" = a").append(i % 7).append(" { ',' x } | 'key_word_").append(i % 3)
+        .append("' [ y { ',' x } ] ( z | { ',' x } | 'another_long_word' w+ ) | 3 * [ ',' x ];\n");
+    }
+    final Grammar grammar = grammar(sb.toString());
+    final Rule[] rules = grammar.getRules();
+    final String[] expected = new String[rules.length];
+    for(int i=0; i<rules.length; i++) {
+      expected[i] = rules[i].toYBNF();
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<String>> futureList = new ArrayList<Future<String>>();
+      for(int t=0; t<8; t++) {
+        final int offset = t * 25;
+        futureList.add(executor.submit(new Callable<String>() {
+          @Override
+          public String call() {
+            for(int n=0; n<20; n++) {
+              for(int i=0; i<rules.length; i++) {
+                int index = (i + offset) % rules.length;
+                String ybnf = rules[index].toYBNF();
+                if(!ybnf.equals(expected[index])) {
+                  return ybnf;
+                }
+              }
+            }
+            return null;
+          }
+        }));
+      }
+      for(Future<String> future: futureList) {
+        assertNull(future.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testConcurrentLayouts() throws Exception {
+    final RRDiagram rrDiagram = new GrammarToRRDiagram().convert(grammar("r = a { ',' b } | 3 * 'c' [ d ];").getRule("r"));
+    final RRDiagramToSVG small = new RRDiagramToSVG();
+    final RRDiagramToSVG large = new RRDiagramToSVG();
+    // texts share a CSS class, so they keep a single font
+    Font font = new Font(RRDiagramToSVG.FONT_FAMILY_NAME, Font.PLAIN, 18);
+    large.setRuleFont(font);
+    large.setLiteralFont(font);
+    large.setSpecialSequenceFont(font);
+    large.setLoopFont(font);
+    final String expectedSmall = small.convert(rrDiagram);
+    final String expectedLarge = large.convert(rrDiagram);
+    assertFalse(expectedSmall.equals(expectedLarge));
+    // a layout can be kept for later conversions
+    RRLayout layout = new RRLayout(large);
+    assertEquals(expectedLarge, large.convert(rrDiagram, layout));
+    assertEquals(expectedLarge, large.convert(rrDiagram, layout));
+    // a kept layout stays valid: the children of an element cannot change
+    RRElement[] rrElements = new RRElement[] {new RRText(RRText.Type.LITERAL, "x", null)};
+    RRSequence rrSequence = new RRSequence(rrElements);
+    rrElements[0] = new RRText(RRText.Type.LITERAL, "longer", null);
+    rrSequence.getRRElements()[0] = rrElements[0];
+    assertEquals("x", ((RRText)rrSequence.getRRElements()[0]).getText());
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Boolean>> futureList = new ArrayList<Future<Boolean>>();
+      for(int t=0; t<4; t++) {
+        final boolean isSmall = t % 2 == 0;
+        futureList.add(executor.submit(new Callable<Boolean>() {
+          @Override
+          public Boolean call() {
+            for(int n=0; n<200; n++) {
+              if(!(isSmall? expectedSmall.equals(small.convert(rrDiagram)): expectedLarge.equals(large.convert(rrDiagram)))) {
+                return false;
+              }
+            }
+            return true;
+          }
+        }));
+      }
+      for(Future<Boolean> future: futureList) {
+        assertTrue(future.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
   @Test
   public void testRuleToString() {
     assertEquals("r = a b;", rule("r = a b;").toString());